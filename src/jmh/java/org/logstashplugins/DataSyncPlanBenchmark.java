@@ -0,0 +1,97 @@
+package org.logstashplugins;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Plan maintenance at different plan sizes. Plan is rebuilt before each invocation, since all operations modify it.
+ *
+ * Segments of the plan cycle through: Ok under half of the limit (merged in pairs), Dirty, Invalid and oversized Ok (split).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DataSyncPlanBenchmark
+{
+	private static final int HISTORY_DAYS = 365;
+
+	private static final int SYNC_LIMIT = 10000;
+
+	@Param({ "1000", "100000", "1000000" })
+	public int segments;
+
+	private DataSyncPlan plan;
+
+	private final SegmentScheduler scheduler = new SegmentScheduler(3600000L, SYNC_LIMIT);
+
+	private long now;
+
+	@Setup(Level.Invocation)
+	public void setup()
+	{
+		long to = Instant.now().toEpochMilli();
+		long from = Instant.now().minus(HISTORY_DAYS, ChronoUnit.DAYS).truncatedTo(ChronoUnit.DAYS).toEpochMilli() - 1000L; // oldest segment gets clipped
+		long step = Math.max(1L, (to - from) / segments);
+
+		SegmentTable table = new SegmentTable(segments);
+		for (int i = 0; i < segments; ++i)
+		{
+			TimeSegment ts = new TimeSegment(table, table.add(from + i*step, (i == segments-1)?to:from + (i+1)*step));
+			switch (i % 8)
+			{
+				case 2: break; // Dirty
+				case 5: ts.setCheckResult(10, 20); break; // Invalid
+				case 7: ts.setCheckResult(SYNC_LIMIT, SYNC_LIMIT); break; // oversized
+				default: ts.setCheckResult(SYNC_LIMIT/3, SYNC_LIMIT/3); break;
+			}
+			ts.setVerifiedAt(to - (i % 97) * 60000L); // verified within the last 97 minutes
+		}
+		plan = new DataSyncPlan(HISTORY_DAYS, SYNC_LIMIT, table);
+		now = to;
+	}
+
+	@Benchmark
+	public DataSyncPlan repartition()
+	{
+		plan.Repartition();
+		return plan;
+	}
+
+	@Benchmark
+	public DataSyncPlan shiftToNow()
+	{
+		plan.ShiftToNow();
+		return plan;
+	}
+
+	@Benchmark
+	public List<TimeSegment> schedule()
+	{
+		return scheduler.schedule(plan, now);
+	}
+
+	@Benchmark
+	public DataSyncPlan markDirty()
+	{
+		scheduler.markDirty(plan, segments/100, now);
+		return plan;
+	}
+}
@@ -0,0 +1,143 @@
+package org.logstashplugins;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.datastax.oss.driver.api.core.cql.Row;
+
+/**
+ * Per row work of loadCsData (UUID dedup and event mapping) over a page of synthetic rows.
+ *
+ * Rows are dynamic proxies of the driver Row serving only the methods used by the load path (getBytesUnsafe, getString, getSet),
+ * so measured time includes a small proxy overhead per column access. Run with '-prof gc' to see allocation per event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventMappingBenchmark
+{
+	private static final int PAGE_SIZE = 5000;
+
+	private static final String[][] TAG_COMBINATIONS = { { "camel", "test01" }, { "beats_input_codec_plain_applied", "filebeat", "prod01" }, { "iot" } };
+
+	private Row[] rows;
+
+	private final UuidSet uids = new UuidSet(PAGE_SIZE);
+
+	private final EventMapper mapper = new EventMapper(new ConcurrentHashMap<ByteBuffer, List<String>>());
+
+	@Setup
+	public void setup()
+	{
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long created = Instant.parse("2019-10-17T08:00:00.000Z").toEpochMilli();
+		rows = new Row[PAGE_SIZE];
+		for (int i = 0; i < PAGE_SIZE; ++i)
+		{
+			UUID uid = (i % 100 == 99)?rowUid(rows[i-1]):UUID.randomUUID(); // 1% duplicates
+			created += random.nextInt(50);
+			rows[i] = syntheticRow(uid, created, new LinkedHashSet<String>(Arrays.asList(TAG_COMBINATIONS[i % TAG_COMBINATIONS.length])),
+								   "{\"message\":\"event "+i+"\",\"level\":\"INFO\"}", "");
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PAGE_SIZE)
+	public void dedupAndMap(Blackhole bh)
+	{
+		uids.clear();
+		for (Row row : rows)
+		{
+			ByteBuffer uidBytes = row.getBytesUnsafe(0);
+			long msb = uidBytes.getLong(uidBytes.position());
+			long lsb = uidBytes.getLong(uidBytes.position()+8);
+			if (uids.add(msb, lsb))
+			{
+				bh.consume(mapper.map(msb, lsb, row));
+			}
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PAGE_SIZE)
+	public void dedupOnly(Blackhole bh)
+	{
+		uids.clear();
+		for (Row row : rows)
+		{
+			ByteBuffer uidBytes = row.getBytesUnsafe(0);
+			bh.consume(uids.add(uidBytes.getLong(uidBytes.position()), uidBytes.getLong(uidBytes.position()+8)));
+		}
+	}
+
+	private static UUID rowUid(Row row)
+	{
+		ByteBuffer uidBytes = row.getBytesUnsafe(0);
+		return new UUID(uidBytes.getLong(uidBytes.position()), uidBytes.getLong(uidBytes.position()+8));
+	}
+
+	/**
+	 * Row with columns uid, created, tags, data, embed holding the same raw bytes as the driver would (uuid, timestamp, set of text).
+	 */
+	private static Row syntheticRow(UUID uid, long created, Set<String> tags, String data, String embed)
+	{
+		ByteBuffer[] raw = new ByteBuffer[5];
+		raw[0] = (ByteBuffer)ByteBuffer.allocate(16).putLong(uid.getMostSignificantBits()).putLong(uid.getLeastSignificantBits()).flip();
+		raw[1] = (ByteBuffer)ByteBuffer.allocate(8).putLong(created).flip();
+		raw[2] = encodeSet(tags);
+		Object[] values = { uid, Instant.ofEpochMilli(created), tags, data, embed };
+
+		return (Row)Proxy.newProxyInstance(Row.class.getClassLoader(), new Class<?>[] { Row.class }, (proxy, method, args) ->
+		{
+			switch (method.getName())
+			{
+				case "getBytesUnsafe": return (raw[(Integer)args[0]] != null)?raw[(Integer)args[0]].duplicate():null;
+				case "getString":
+				case "getSet": return values[(Integer)args[0]];
+				default: throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+
+	private static ByteBuffer encodeSet(Set<String> values)
+	{
+		int size = 4;
+		for (String value : values)
+		{
+			size += 4 + value.length();
+		}
+
+		ByteBuffer returnValue = ByteBuffer.allocate(size).putInt(values.size());
+		for (String value : values)
+		{
+			returnValue.putInt(value.length()).put(value.getBytes(StandardCharsets.US_ASCII));
+		}
+		return (ByteBuffer)returnValue.flip();
+	}
+}
@@ -0,0 +1,65 @@
+package org.logstashplugins;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Evaluation of inclusive tags expression over tag combinations as found in the event store.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TagFilterBenchmark
+{
+	@Param({ "camel", "camel && test01 && !'non_EXISTENT_TAG'", "(camel || apm) && !filebeat && 'beats_input_codec_plain_applied' || iot" })
+	public String expression;
+
+	private List<Set<String>> combinations;
+
+	@Setup
+	public void setup()
+	{
+		String[][] tags = {
+			{ "beats_input_codec_plain_applied", "camel", "test01", "filebeat" },
+			{ "beats_input_codec_plain_applied", "apm", "prod01" },
+			{ "iot", "sensor", "gateway_7" },
+			{ "camel", "test02" },
+			{ "beats_input_codec_plain_applied", "camel", "prod02", "metricbeat", "_grokparsefailure" },
+		};
+
+		combinations = new ArrayList<Set<String>>();
+		for (String[] combination : tags)
+		{
+			combinations.add(new HashSet<String>(Arrays.asList(combination)));
+		}
+	}
+
+	@Benchmark
+	public void filterTagsToIncludeExpression(Blackhole bh)
+	{
+		for (Set<String> tags : combinations)
+		{
+			bh.consume(CassandraSearchOperations.filterTagsToIncludeExpression(expression, tags, null));
+		}
+	}
+}
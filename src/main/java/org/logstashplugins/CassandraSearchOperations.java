@@ -1,36 +1,57 @@
 package org.logstashplugins;
 
-import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.time.Clock;
 import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import org.apache.logging.log4j.Logger;
 
+import com.datastax.oss.driver.api.core.ConsistencyLevel;
 import com.datastax.oss.driver.api.core.CqlSession;
-import com.datastax.oss.driver.api.core.DefaultConsistencyLevel;
+import com.datastax.oss.driver.api.core.config.DefaultDriverOption;
+import com.datastax.oss.driver.api.core.config.DriverConfigLoader;
 import com.datastax.oss.driver.api.core.config.DriverExecutionProfile;
+import com.datastax.oss.driver.api.core.config.ProgrammaticDriverConfigLoaderBuilder;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
 import com.datastax.oss.driver.api.core.cql.BoundStatement;
 import com.datastax.oss.driver.api.core.cql.PreparedStatement;
 import com.datastax.oss.driver.api.core.cql.ResultSet;
 import com.datastax.oss.driver.api.core.cql.Row;
 import com.datastax.oss.driver.api.core.cql.SimpleStatement;
 import com.datastax.oss.driver.api.core.metadata.Node;
+import com.datastax.oss.driver.api.core.metadata.TokenMap;
+import com.datastax.oss.driver.api.core.metadata.token.TokenRange;
 import com.datastax.oss.driver.api.core.session.Request;
 import com.datastax.oss.driver.api.core.tracker.RequestTracker;
 import com.datastax.oss.driver.api.core.type.reflect.GenericType;
-import org.openjdk.nashorn.api.scripting.NashornScriptEngineFactory;
 
-import javax.script.ScriptEngine;
-import javax.script.ScriptException;
-
-public class CassandraSearchOperations implements Closeable
+public class CassandraSearchOperations implements EventStoreOperations
 {
 	private String cassandraHost;
 	
@@ -38,253 +59,893 @@ public class CassandraSearchOperations implements Closeable
 	
 	private int cassandraFetchLimit;
 	
+	private int cassandraPageSize;
+	
 	private Logger log;
 		
-	private List<Set<String>> inclusiveTagCombinations = new ArrayList<Set<String>>();
+	private TagCombinationCatalog tagCatalog;
+	
+	private volatile CqlSession session;
 	
-	private CqlSession session;
+	private volatile boolean closed = false; // no new session is built after close (e.g. by a tail poll still running)
 
 	private String dataCenter;
 	
 	private PreparedStatement preparedLoadStatement;
 	
 	private PreparedStatement preparedCountStatement;
-
-	private static NashornScriptEngineFactory sef = new org.openjdk.nashorn.api.scripting.NashornScriptEngineFactory();
 	
-	public CassandraSearchOperations(String aHost, int aPort, int aFetchLimit, String aDataCenter, String aTagsIncl, Logger aLog) throws Exception
+	private PreparedStatement preparedPartitionLoadStatement;
+	
+	private PreparedStatement preparedPartitionCountStatement;
+	
+	private PreparedStatement preparedPartitionFastCountStatement;
+	
+	private PreparedStatement preparedScanStatement;
+	
+	private boolean partitionFanOut;
+	
+	private boolean fastCount;
+	
+	private Duration speculativeDelay; // zero = no speculative executions
+	
+	private ConsistencyLevel consistency; // loads and counts confirming a mismatch
+	
+	private ConsistencyLevel routineConsistency; // routine re-verification counts
+	
+	private final CircuitBreaker breaker = new CircuitBreaker(3, Duration.ofSeconds(5), Clock.systemUTC());
+	
+	private static final String SCAN_TAGS_QUERY = "SELECT DISTINCT tags FROM eventstore.event";
+	
+	private final SyncMetrics metrics;
+	
+	private final Map<String, String> queryTypes = new ConcurrentHashMap<String, String>(); // query text -> type reported in metrics
+	
+	private final Queue<UuidSet> uidSets = new ConcurrentLinkedQueue<UuidSet>();
+	
+	private final ConcurrentMap<ByteBuffer, List<String>> sharedTags = new ConcurrentHashMap<ByteBuffer, List<String>>(); // tag lists shared by events
+	
+	public CassandraSearchOperations(String aHost, int aPort, int aFetchLimit, int aPageSize, boolean aPartitionFanOut, boolean aFastCount, ConsistencyLevel aConsistency, ConsistencyLevel aRoutineConsistency, Duration aSpeculativeDelay, String aDataCenter, String aTagsIncl, long aTagRefreshSeconds, SyncMetrics aMetrics, Logger aLog) throws Exception
 	{
 		this.cassandraHost = aHost;
 		this.cassandraPort = aPort;
 		this.cassandraFetchLimit = aFetchLimit;
+		this.cassandraPageSize = aPageSize;
+		this.partitionFanOut = aPartitionFanOut;
+		this.fastCount = aFastCount;
+		this.speculativeDelay = aSpeculativeDelay;
+		this.consistency = aConsistency;
+		this.routineConsistency = aRoutineConsistency;
 		this.log = aLog;
 		this.dataCenter = aDataCenter;
+		this.metrics = aMetrics;
 		this.session = null;
 		
 		ensureConnected();
 		
-		refreshTagCombinations(aTagsIncl);
+		this.tagCatalog = new TagCombinationCatalog(aTagsIncl, this::scanTagCombinations, log);
+		tagCatalog.refresh();
+		tagCatalog.start(aTagRefreshSeconds);
 	}
 
-	public void refreshTagCombinations(String aTagsIncl) throws Exception
+	/**
+	 * Lists all tag combinations (partitions) present in the event store, this is a full partition key scan.
+	 */
+	private List<Set<String>> scanTagCombinations()
 	{
-		ensureConnected();
+		CqlSession activeSession = ensureConnected();
 		
-		inclusiveTagCombinations.clear();
-		ResultSet rs = session.execute("SELECT DISTINCT tags FROM eventstore.event");
+		List<Set<String>> returnValue = new ArrayList<Set<String>>();
+		long start = System.nanoTime();
+		ResultSet rs = activeSession.execute(SCAN_TAGS_QUERY);
 		for (Row row : rs)
 		{
-			Set<String> tags = row.getSet(0, String.class);
-			if (filterTagsToIncludeExpression(aTagsIncl, tags, log))
-			{
-				inclusiveTagCombinations.add(tags);
-			}			
-		}
-		
-		if (inclusiveTagCombinations.size() == 0) // there must be at least one combination included and this must be refreshed regularly
-		{
-			throw new Exception("No matching tag combinations found passing the specified list.");
+			returnValue.add(row.getSet(0, String.class));
 		}
+		metrics.phase("refresh_tags", start);
+		return returnValue;
+	}
+	
+	public TagCombinationCatalog.Snapshot getTagCombinations()
+	{
+		return tagCatalog.getSnapshot();
+	}
+	
+	@Override
+	public long getTagVersion()
+	{
+		return tagCatalog.getSnapshot().getVersion();
 	}
 	
 	public static boolean filterTagsToIncludeExpression(String aTagsIncl, Set<String> eventTags, Logger log)
 	{
-		String expressionUnified = aTagsIncl;
-		
-		// first replace with enclosing all tags in '' (as 1)
-		for(String tag : eventTags)
+		try
 		{
-			expressionUnified = expressionUnified.replaceAll("'"+tag+"'", "1");
+			return TagExpression.compile(aTagsIncl).evaluate(eventTags);
 		}
-		
-		// second, replace bare substrings (as 1)
-		for(String tag : eventTags)
+		catch (IllegalArgumentException e)
 		{
-			expressionUnified = expressionUnified.replaceAll(tag, "1");
+			if (log != null) // e.g. tests and benchmarks
+			{
+				log.error("Failed to evaluate expression for tag filtering: '"+aTagsIncl+"' with error: "+e.getMessage(), e);
+			}
 		}
-		
-		// third, replace all remaining tags (as 0)
-		expressionUnified = expressionUnified.replaceAll("['a-zA-Z_+#-]['a-zA-Z_0-9+#-]+", "false");
-		expressionUnified = expressionUnified.replaceAll("1", "true");
-		expressionUnified = expressionUnified.replaceAll("0", "false");
-		
-		try
-		{
-			ScriptEngine nashornEngine = sef.getScriptEngine();
-            boolean result = (boolean)nashornEngine.eval(expressionUnified);
-            return result;
-        }
-		catch (ScriptException e)
-		{
-            log.error("Failed to evaluate expression for tag filtering: '"+aTagsIncl+"' as '"+expressionUnified+"' with error: "+e.getMessage(), e);
-        }
 		return false;
 	}
 
-	private void ensureConnected()
+	private static String queryText(Request request)
+	{
+		if (request instanceof BoundStatement)
+		{
+			return ((BoundStatement)request).getPreparedStatement().getQuery();
+		}
+		if (request instanceof SimpleStatement)
+		{
+			return ((SimpleStatement)request).getQuery();
+		}
+		return request.getClass().getSimpleName(); // e.g. prepare or batch requests
+	}
+	
+	private String queryType(Request request)
+	{
+		return queryTypes.getOrDefault(queryText(request), "other");
+	}
+	
+	/**
+	 * Returns the current session, a new one is built (and statements prepared) if there is none. Queries use only the returned session,
+	 * the field could be cleared by a failed query of another thread meanwhile (see onQueryError).
+	 */
+	private synchronized CqlSession ensureConnected()
 	{
+		if (closed)
+		{
+			throw new IllegalStateException("CS operations are closed.");
+		}
 		if (session == null)
 		{
+			breaker.checkAvailable();
+			
+			// all queries are idempotent reads, so they are retried on another node and sent speculatively to another replica when slow
+			ProgrammaticDriverConfigLoaderBuilder config = DriverConfigLoader.programmaticBuilder()
+																			 .withBoolean(DefaultDriverOption.REQUEST_DEFAULT_IDEMPOTENCE, true)
+																			 .withClass(DefaultDriverOption.RETRY_POLICY_CLASS, ReadRetryPolicy.class);
+			if (!speculativeDelay.isZero())
+			{
+				config = config.withString(DefaultDriverOption.SPECULATIVE_EXECUTION_POLICY_CLASS, "ConstantSpeculativeExecutionPolicy")
+							   .withInt(DefaultDriverOption.SPECULATIVE_EXECUTION_MAX, 2) // including the initial execution
+							   .withDuration(DefaultDriverOption.SPECULATIVE_EXECUTION_DELAY, speculativeDelay);
+			}
+			
 			InetSocketAddress cassandraIP = new InetSocketAddress(cassandraHost, cassandraPort);
-			session = CqlSession.builder().addContactPoint(cassandraIP)
-										  .withRequestTracker(new RequestTracker()
-										  {
-											@Override
-											public void onSuccess(Request request, long latencyNanos, DriverExecutionProfile executionProfile, Node node, String requestLogPrefix) {
-												RequestTracker.super.onSuccess(request, latencyNanos, executionProfile, node, requestLogPrefix);
-												log.debug("Finished request "+((BoundStatement)request).getPreparedStatement().getQuery()+" in "+latencyNanos/1000000.0+"ms");
-											}
-											
-											@Override
-											public void onNodeSuccess(Request request, long latencyNanos, DriverExecutionProfile executionProfile, Node node, String requestLogPrefix)
-											{
-												RequestTracker.super.onNodeSuccess(request, latencyNanos, executionProfile, node, requestLogPrefix);
-												log.debug("Finished request "+((BoundStatement)request).getPreparedStatement().getQuery()+" in "+latencyNanos/1000000.0+"ms");
-											}
-											
-											@Override
-											public void onError(Request request, Throwable error, long latencyNanos, DriverExecutionProfile executionProfile, Node node, String requestLogPrefix)
-											{
-												RequestTracker.super.onError(request, error, latencyNanos, executionProfile, node, requestLogPrefix);
-												log.error("Finished request "+((BoundStatement)request).getPreparedStatement().getQuery()+" in "+latencyNanos/1000000.0+"ms with error: "+error.getMessage());
-											}
+			CqlSession newSession;
+			try
+			{
+				newSession = CqlSession.builder().addContactPoint(cassandraIP)
+											  .withConfigLoader(config.build())
+											  .withClassLoader(CassandraSearchOperations.class.getClassLoader()) // policies are loaded by name
+											  .withRequestTracker(new RequestTracker()
+											  {
+												@Override
+												public void onSuccess(Request request, long latencyNanos, DriverExecutionProfile executionProfile, Node node, String requestLogPrefix) {
+													RequestTracker.super.onSuccess(request, latencyNanos, executionProfile, node, requestLogPrefix);
+													metrics.cassandraRequest(queryType(request), latencyNanos, false);
+													breaker.recordSuccess();
+												}
+												
+												@Override
+												public void onNodeSuccess(Request request, long latencyNanos, DriverExecutionProfile executionProfile, Node node, String requestLogPrefix)
+												{
+													RequestTracker.super.onNodeSuccess(request, latencyNanos, executionProfile, node, requestLogPrefix);
+													log.debug("Finished request "+queryText(request)+" in "+latencyNanos/1000000.0+"ms");
+												}
+												
+												@Override
+												public void onError(Request request, Throwable error, long latencyNanos, DriverExecutionProfile executionProfile, Node node, String requestLogPrefix)
+												{
+													RequestTracker.super.onError(request, error, latencyNanos, executionProfile, node, requestLogPrefix);
+													metrics.cassandraRequest(queryType(request), latencyNanos, true);
+													log.error("Finished request "+queryText(request)+" in "+latencyNanos/1000000.0+"ms with error: "+error.getMessage());
+												}
 
-											@Override
-											public void onNodeError(Request request, Throwable error, long latencyNanos, DriverExecutionProfile executionProfile, Node node, String requestLogPrefix)
-											{
-												RequestTracker.super.onNodeError(request, error, latencyNanos, executionProfile, node, requestLogPrefix);
-												log.error("Finished request "+((BoundStatement)request).getPreparedStatement().getQuery()+" in "+latencyNanos/1000000.0+"ms with NODE error: "+error.getMessage());
-											}
+												@Override
+												public void onNodeError(Request request, Throwable error, long latencyNanos, DriverExecutionProfile executionProfile, Node node, String requestLogPrefix)
+												{
+													RequestTracker.super.onNodeError(request, error, latencyNanos, executionProfile, node, requestLogPrefix);
+													log.warn("Finished request "+queryText(request)+" in "+latencyNanos/1000000.0+"ms with NODE error (retry policy decides whether it is tried on another node): "+error.getMessage());
+												}
 
-											@Override public void close() throws Exception {}})
-					                      .withLocalDatacenter(dataCenter)
-					                      .build();
+												@Override public void close() throws Exception {}})
+						                      .withLocalDatacenter(dataCenter)
+						                      .build();
+			}
+			catch (RuntimeException e)
+			{
+				breaker.trip(); // no reconnect storm, next attempt after the cool-down
+				throw e;
+			}
 			
-			SimpleStatement simpleLoadStatement = SimpleStatement.builder("SELECT uid, created, tags, data, embed FROM eventstore.event WHERE tags IN ? AND created >= ? AND created < ? LIMIT ?")
-															     .setConsistencyLevel(DefaultConsistencyLevel.QUORUM)
-															     .setTimeout(Duration.ofSeconds(60)) //.setTracing()															     
-															     .build();
+			try
+			{
+				SimpleStatement simpleLoadStatement = SimpleStatement.builder("SELECT uid, created, tags, data, embed FROM eventstore.event WHERE tags IN ? AND created >= ? AND created < ? LIMIT ?")
+																     .setConsistencyLevel(consistency)
+																     .setIdempotence(true)
+																     .setTimeout(Duration.ofSeconds(60)) //.setTracing()															     
+																     .build();
 			
-			preparedLoadStatement = session.prepare(simpleLoadStatement);
+				preparedLoadStatement = newSession.prepare(simpleLoadStatement);
 			
-			SimpleStatement simpleCountStatement = SimpleStatement.builder("SELECT uid FROM eventstore.event WHERE tags IN ? AND created >= ? AND created < ? LIMIT ?")//, created, tags
-															      .setConsistencyLevel(DefaultConsistencyLevel.QUORUM)
-															      .setTimeout(Duration.ofSeconds(60)) //.setTracing()															     
-															      .build();
+				SimpleStatement simpleCountStatement = SimpleStatement.builder("SELECT uid FROM eventstore.event WHERE tags IN ? AND created >= ? AND created < ? LIMIT ?")//, created, tags
+																      .setConsistencyLevel(consistency)
+																      .setIdempotence(true)
+																      .setTimeout(Duration.ofSeconds(60)) //.setTracing()															     
+																      .build();
 
-			preparedCountStatement = session.prepare(simpleCountStatement);
-		}		
+				preparedCountStatement = newSession.prepare(simpleCountStatement);
+			
+				// single partition variants, bound statements carry routing key so that they are sent token-aware directly to a replica
+				SimpleStatement simplePartitionLoadStatement = SimpleStatement.builder("SELECT uid, created, tags, data, embed FROM eventstore.event WHERE tags = ? AND created >= ? AND created < ? ORDER BY created ASC LIMIT ?")
+																			  .setConsistencyLevel(consistency)
+																			  .setIdempotence(true)
+																			  .setTimeout(Duration.ofSeconds(60))
+																			  .build();
+			
+				preparedPartitionLoadStatement = newSession.prepare(simplePartitionLoadStatement);
+			
+				SimpleStatement simplePartitionCountStatement = SimpleStatement.builder("SELECT uid FROM eventstore.event WHERE tags = ? AND created >= ? AND created < ? LIMIT ?")
+																			   .setConsistencyLevel(consistency)
+																			   .setIdempotence(true)
+																			   .setTimeout(Duration.ofSeconds(60))
+																			   .build();
+			
+				preparedPartitionCountStatement = newSession.prepare(simplePartitionCountStatement);
+			
+				SimpleStatement simplePartitionFastCountStatement = SimpleStatement.builder("SELECT COUNT(*) FROM eventstore.event WHERE tags = ? AND created >= ? AND created < ?")
+																				   .setConsistencyLevel(consistency)
+																				   .setIdempotence(true)
+																				   .setTimeout(Duration.ofSeconds(60))
+																				   .build();
+			
+				preparedPartitionFastCountStatement = newSession.prepare(simplePartitionFastCountStatement);
+			
+				// token range of the ring for backfill, 'created' is filtered within every partition of the range
+				SimpleStatement simpleScanStatement = SimpleStatement.builder("SELECT uid, created, tags, data, embed FROM eventstore.event WHERE token(tags) > ? AND token(tags) <= ? AND created >= ? AND created < ? ALLOW FILTERING")
+																	 .setConsistencyLevel(consistency)
+																	 .setIdempotence(true)
+																	 .setTimeout(Duration.ofSeconds(60))
+																	 .build();
+			
+				preparedScanStatement = newSession.prepare(simpleScanStatement);
+			
+				queryTypes.put(preparedLoadStatement.getQuery(), "load");
+				queryTypes.put(preparedCountStatement.getQuery(), "count");
+				queryTypes.put(preparedPartitionLoadStatement.getQuery(), "partition_load");
+				queryTypes.put(preparedPartitionCountStatement.getQuery(), "partition_count");
+				queryTypes.put(preparedPartitionFastCountStatement.getQuery(), "partition_fast_count");
+				queryTypes.put(preparedScanStatement.getQuery(), "scan");
+				queryTypes.put(SCAN_TAGS_QUERY, "scan_tags");
+			}
+			catch (RuntimeException e)
+			{
+				newSession.closeAsync(); // not left open by a failed prepare
+				throw e;
+			}
+			session = newSession; // published only with all statements prepared
+		}
+		return session;
+	}
+	
+	/**
+	 * Streams events of the period to the consumer as the rows arrive, result is fetched in pages of configured size,
+	 * so only one page is held in memory at a time. Returns number of events pushed (duplicates are skipped).
+	 */
+	@Override
+	public int loadCsData(TimeSegment period, Consumer<Map<String, Object>> consumer)
+	{
+		return load(period, consumer).pushed;
+	}
+	
+	/**
+	 * Rows are counted before dedup by UID (see LoadSink).
+	 */
+	@Override
+	public int loadCsDataRows(TimeSegment period, Consumer<Map<String, Object>> consumer)
+	{
+		LoadSink sink = load(period, consumer);
+		return sink.pushed + sink.duplicates;
 	}
 	
-	public List<Map<String, Object>> loadCsData(TimeSegment period)
+	private LoadSink load(TimeSegment period, Consumer<Map<String, Object>> consumer)
 	{
-		List<Map<String, Object>> returnValue = new ArrayList<>();
+		CqlSession activeSession = null;
 		try
 		{
-			ensureConnected();
-					
-			BoundStatement boundStatement = preparedLoadStatement.bind()
-														     .set(0, inclusiveTagCombinations, GenericType.listOf(GenericType.setOf(String.class)))
-					                                         .setInstant(1, period.getFromTsInstant())
-					                                         .setInstant(2, period.getToTsInstant())
-					                                         .setInt(3, cassandraFetchLimit);
-						
-			Set<String> dedupByUid = new HashSet<String>();
-			int duplicates = 0;
-			ResultSet rs = session.execute(boundStatement);			
-			for (Row row : rs)
-			{
-				Map<String, Object> rowMap = new HashMap<String, Object>();
-				String uid = row.getUuid(0).toString();
-				if (dedupByUid.contains(uid))
-				{
-					++duplicates;
-				}
-				else
+			activeSession = ensureConnected();
+			
+			LoadSink sink = new LoadSink(consumer);
+			if (partitionFanOut)
+			{
+				new PartitionMergeReader(executePerPartition(activeSession, preparedPartitionLoadStatement, period, cassandraFetchLimit, cassandraPageSize, consistency)).forEach(sink, cassandraFetchLimit);
+			}
+			else
+			{
+				ResultSet rs = activeSession.execute(bindLoadStatement(period)); // iteration fetches next page when current one is drained
+				for (Row row : rs)
 				{
-					dedupByUid.add(uid);
-					rowMap.put("uid", uid);
-					rowMap.put("created", row.getInstant(1).toString());
-					rowMap.put("tags", new ArrayList<String>(row.getSet(2, String.class)));
-					rowMap.put("data", row.getString(3));
-					rowMap.put("embed", row.getString(4));
+					sink.accept(row);
 				}
+			}
+			sink.finish(period);
+			return sink;
+		}
+		catch (CancellationException e)
+		{
+			throw e; // load abandoned by the consumer, session is fine
+		}
+		catch (Exception e)
+		{
+			onQueryError("Load", e, activeSession);
+			throw e;
+		}
+	}
+
+	/**
+	 * Non-blocking variant of loadCsData, pages are decoded and pushed to the consumer on the supplied executor (never on driver I/O threads).
+	 * No executor thread waits for pages, partitions of the fan-out are merged whenever their pages arrive.
+	 */
+	@Override
+	public CompletableFuture<Integer> loadCsDataAsync(TimeSegment period, Consumer<Map<String, Object>> consumer, Executor executor)
+	{
+		CqlSession activeSession = ensureConnected();
+		
+		LoadSink sink = new LoadSink(consumer);
+		CompletableFuture<Void> rows = partitionFanOut?new PartitionMergeReader(executePerPartition(activeSession, preparedPartitionLoadStatement, period, cassandraFetchLimit, cassandraPageSize, consistency)).forEachAsync(sink, cassandraFetchLimit, executor)
+													  :forEachRowAsync(activeSession, bindLoadStatement(period), sink, executor);
+		return finishAsync(rows, "Load", activeSession, () -> sink.finish(period));
+	}
 
-				returnValue.add(rowMap);
+	@Override
+	public int countCsData(TimeSegment period)
+	{
+		return countCsData(period, consistency, isCountApproximate(period));
+	}
+	
+	private int countCsData(TimeSegment period, ConsistencyLevel level, boolean approximate)
+	{
+		if (approximate)
+		{
+			try
+			{
+				return countCsDataFast(period, level).join();
+			}
+			catch (CompletionException e)
+			{
+				throw (e.getCause() instanceof RuntimeException)?(RuntimeException)e.getCause():e;
 			}
+		}
+		
+		return digestCsData(period, level).getCount();
+	}
+	
+	/**
+	 * Counts distinct UIDs of the period and computes their digest (see SegmentDigest), this always transfers UIDs regardless of count mode.
+	 */
+	@Override
+	public SegmentDigest digestCsData(TimeSegment period)
+	{
+		return digestCsData(period, consistency);
+	}
+	
+	private SegmentDigest digestCsData(TimeSegment period, ConsistencyLevel level)
+	{
+		CqlSession activeSession = null;
+		try
+		{
+			activeSession = ensureConnected();
 			
-			if (duplicates > 0)
+			CountSink sink = new CountSink();
+			if (partitionFanOut)
 			{
-				log.warn("Found "+duplicates+" duplicates for "+period);
+				new PartitionMergeReader(executePerPartition(activeSession, preparedPartitionCountStatement, period, cassandraFetchLimit, 0, level)).forEachUnordered(sink);
+			}
+			else
+			{
+				ResultSet rs = activeSession.execute(bindCountStatement(period, level));
+				for (Row row : rs)
+				{
+					sink.accept(row);
+				}
 			}
+			return new SegmentDigest(Math.min(sink.finish(period), cassandraFetchLimit), sink.digest); // same cap as the single query LIMIT
 		}
 		catch (Exception e)
 		{
-			log.error("Exception caused by CS Load query, "+e.getMessage(), e);
-			
-			if (session!=null) session.close();
-			session = null;
+			onQueryError("Count", e, activeSession);
 			throw e;
 		}
+	}
+
+	/**
+	 * Non-blocking variant of digestCsData, rows are processed on the supplied executor.
+	 */
+	@Override
+	public CompletableFuture<SegmentDigest> digestCsDataAsync(TimeSegment period, boolean routine, Executor executor)
+	{
+		ConsistencyLevel level = routine?routineConsistency:consistency;
+		CqlSession activeSession = ensureConnected();
 		
-		return returnValue;
+		CountSink sink = new CountSink();
+		return finishAsync(forEachRowAsync(executeCount(activeSession, period, level), sink, executor), "Count", activeSession,
+						   () -> new SegmentDigest(Math.min(sink.finish(period), cassandraFetchLimit), sink.digest));
 	}
 
-	public int countCsData(TimeSegment period)
+	/**
+	 * Non-blocking variant of countCsData, fast count mode is decided by the caller (period is a range without check state).
+	 */
+	@Override
+	public CompletableFuture<Integer> countCsDataAsync(TimeSegment period, boolean routine, boolean approximate, Executor executor)
+	{
+		ConsistencyLevel level = routine?routineConsistency:consistency;
+		if (approximate)
+		{
+			return countCsDataFast(period, level);
+		}
+		
+		CqlSession activeSession = ensureConnected();
+		
+		CountSink sink = new CountSink();
+		return finishAsync(forEachRowAsync(executeCount(activeSession, period, level), sink, executor), "Count", activeSession,
+						   () -> Math.min(sink.finish(period), cassandraFetchLimit));
+	}
+	
+	/**
+	 * Fast count mode applies only to segments checked before and found under the fetch limit: COUNT(*) is not limited on the server,
+	 * so it would scan the whole range of a new or oversized segment (e.g. the first segment of the history) and could time out.
+	 */
+	@Override
+	public boolean isCountApproximate(TimeSegment period)
 	{
+		return fastCount && period.getVerifiedAt() != 0L && period.getElCount() < cassandraFetchLimit;
+	}
+	
+	/**
+	 * Sums server side COUNT(*) of all included partitions, queried in parallel. Only numbers are transferred, UIDs are not deduplicated,
+	 * so rows duplicated by UID are counted more than once and the sum could exceed the UID based count.
+	 * Result is capped at the fetch limit (same as the UID based count), completes as soon as the cap is reached.
+	 */
+	private CompletableFuture<Integer> countCsDataFast(TimeSegment period, ConsistencyLevel level)
+	{
+		CompletableFuture<Integer> returnValue = new CompletableFuture<Integer>();
+		CqlSession activeSession = null;
 		try
 		{
-			ensureConnected();
+			CqlSession fastCountSession = activeSession = ensureConnected();
+			
+			List<CompletionStage<AsyncResultSet>> partitions = executePerPartition(fastCountSession, preparedPartitionFastCountStatement, period, 0, 0, level);
+			AtomicLong sum = new AtomicLong();
+			AtomicInteger remaining = new AtomicInteger(partitions.size());
+			if (partitions.isEmpty())
+			{
+				returnValue.complete(0);
+			}
+			
+			for (CompletionStage<AsyncResultSet> partition : partitions)
+			{
+				partition.whenComplete((rs, error) ->
+				{
+					if (error != null)
+					{
+						if (returnValue.completeExceptionally(error))
+						{
+							onQueryError("Count", error, fastCountSession);
+						}
+						return;
+					}
 					
-			BoundStatement boundStatement = preparedCountStatement.bind()
-														     .set(0, inclusiveTagCombinations, GenericType.listOf(GenericType.setOf(String.class)))
-					                                         .setInstant(1, period.getFromTsInstant())
-					                                         .setInstant(2, period.getToTsInstant())
-					                                         .setInt(3, cassandraFetchLimit);
-						
-			Set<String> dedupByUid = new HashSet<String>();
-			int duplicates = 0;
-			ResultSet rs = session.execute(boundStatement);			
-			for (Row row : rs)
-			{
-				String uid = row.getUuid(0).toString();
-				if (dedupByUid.contains(uid))
+					Row row = rs.one();
+					long total = sum.addAndGet((row == null)?0L:row.getLong(0));
+					if (total >= cassandraFetchLimit || remaining.decrementAndGet() == 0)
+					{
+						returnValue.complete((int)Math.min(total, cassandraFetchLimit));
+					}
+				});
+			}
+		}
+		catch (Exception e)
+		{
+			onQueryError("Count", e, activeSession);
+			returnValue.completeExceptionally(e);
+		}
+		return returnValue;
+	}
+	
+	/**
+	 * Splits the token ring into at least minParts ranges, ordered round robin by their primary replica so that
+	 * concurrently scanned ranges are served by different nodes. Scan of every range is routed to its replica and paged.
+	 */
+	@Override
+	public List<Callable<Integer>> scanCsData(TimeSegment period, int minParts, Consumer<Map<String, Object>> consumer)
+	{
+		CqlSession activeSession = ensureConnected();
+		
+		TokenMap tokenMap = activeSession.getMetadata().getTokenMap().orElseThrow(() -> new IllegalStateException("Token metadata of CS is not available, token range scan is not possible."));
+		Set<TokenRange> ringRanges = tokenMap.getTokenRanges();
+		int splits = Math.max(1, (minParts + ringRanges.size() - 1) / Math.max(1, ringRanges.size()));
+		
+		Map<Node, Deque<TokenRange>> rangesByReplica = new LinkedHashMap<Node, Deque<TokenRange>>();
+		for (TokenRange ringRange : ringRanges)
+		{
+			Set<Node> replicas = tokenMap.getReplicas("eventstore", ringRange);
+			Node primary = replicas.isEmpty()?null:replicas.iterator().next();
+			for (TokenRange part : ringRange.splitEvenly(splits))
+			{
+				rangesByReplica.computeIfAbsent(primary, k -> new ArrayDeque<TokenRange>()).addAll(part.unwrap());
+			}
+		}
+		
+		List<Callable<Integer>> returnValue = new ArrayList<Callable<Integer>>();
+		Set<Set<String>> included = new HashSet<Set<String>>(tagCatalog.getSnapshot().getCombinations());
+		while (!rangesByReplica.isEmpty())
+		{
+			for (Iterator<Deque<TokenRange>> it = rangesByReplica.values().iterator(); it.hasNext();)
+			{
+				Deque<TokenRange> ranges = it.next();
+				TokenRange range = ranges.poll();
+				returnValue.add(() -> scanTokenRange(range, period, included, consumer));
+				if (ranges.isEmpty())
+				{
+					it.remove();
+				}
+			}
+		}
+		return returnValue;
+	}
+	
+	private int scanTokenRange(TokenRange range, TimeSegment period, Set<Set<String>> included, Consumer<Map<String, Object>> consumer)
+	{
+		CqlSession activeSession = null;
+		try
+		{
+			activeSession = ensureConnected();
+			
+			BoundStatement statement = preparedScanStatement.bind()
+															.setToken(0, range.getStart())
+															.setToken(1, range.getEnd())
+															.setInstant(2, period.getFromTsInstant())
+															.setInstant(3, period.getToTsInstant())
+															.setRoutingToken(range.getEnd())
+															.setPageSize(cassandraPageSize);
+			LoadSink sink = new LoadSink(consumer); // same dedup by UID as loads
+			ByteBuffer lastTags = null; // rows of a partition are adjacent, tags are evaluated once per partition
+			boolean lastIncluded = false;
+			for (Row row : activeSession.execute(statement))
+			{
+				ByteBuffer tags = row.getBytesUnsafe(2);
+				if (tags == null || !tags.equals(lastTags))
 				{
-					++duplicates;
+					lastIncluded = (tags != null) && included.contains(row.getSet(2, String.class));
+					lastTags = (tags != null)?ByteBuffer.allocate(tags.remaining()).put(tags.duplicate()):null;
+					if (lastTags != null)
+					{
+						lastTags.flip();
+					}
 				}
-				else
+				if (!lastIncluded)
 				{
-					dedupByUid.add(uid);
+					continue;
 				}
+				sink.accept(row);
+			}
+			return sink.finish(period);
+		}
+		catch (CancellationException e)
+		{
+			throw e; // scan abandoned by the consumer, session is fine
+		}
+		catch (Exception e)
+		{
+			onQueryError("Scan", e, activeSession);
+			throw e;
+		}
+	}
+	
+	private BoundStatement bindLoadStatement(TimeSegment period)
+	{
+		return preparedLoadStatement.bind()
+								    .set(0, tagCatalog.getSnapshot().getCombinations(), GenericType.listOf(GenericType.setOf(String.class)))
+								    .setInstant(1, period.getFromTsInstant())
+								    .setInstant(2, period.getToTsInstant())
+								    .setInt(3, cassandraFetchLimit)
+								    .setPageSize(cassandraPageSize);
+	}
+	
+	private BoundStatement bindCountStatement(TimeSegment period, ConsistencyLevel level)
+	{
+		return preparedCountStatement.bind()
+									 .set(0, tagCatalog.getSnapshot().getCombinations(), GenericType.listOf(GenericType.setOf(String.class)))
+									 .setInstant(1, period.getFromTsInstant())
+									 .setInstant(2, period.getToTsInstant())
+									 .setInt(3, cassandraFetchLimit)
+									 .setConsistencyLevel(level);
+	}
+	
+	/**
+	 * Starts the UID count query, either per partition or a single one.
+	 */
+	private List<CompletionStage<AsyncResultSet>> executeCount(CqlSession activeSession, TimeSegment period, ConsistencyLevel level)
+	{
+		return partitionFanOut?executePerPartition(activeSession, preparedPartitionCountStatement, period, cassandraFetchLimit, 0, level)
+							  :Collections.singletonList(activeSession.executeAsync(bindCountStatement(period, level)));
+	}
+	
+	/**
+	 * Starts one single partition query per included tag combination, all of them run concurrently.
+	 */
+	private List<CompletionStage<AsyncResultSet>> executePerPartition(CqlSession activeSession, PreparedStatement statement, TimeSegment period, int limit, int pageSize, ConsistencyLevel level)
+	{
+		List<Set<String>> combinations = tagCatalog.getSnapshot().getCombinations();
+		List<CompletionStage<AsyncResultSet>> returnValue = new ArrayList<CompletionStage<AsyncResultSet>>(combinations.size());
+		for (Set<String> tags : combinations)
+		{
+			BoundStatement boundStatement = statement.bind()
+													 .setSet(0, tags, String.class)
+													 .setInstant(1, period.getFromTsInstant())
+													 .setInstant(2, period.getToTsInstant())
+													 .setConsistencyLevel(level);
+			if (limit > 0)
+			{
+				boundStatement = boundStatement.setInt(3, limit);
+			}
+			if (pageSize > 0)
+			{
+				boundStatement = boundStatement.setPageSize(pageSize);
+			}
+			returnValue.add(activeSession.executeAsync(boundStatement));
+		}
+		return returnValue;
+	}
+	
+	/**
+	 * Executes statement asynchronously and feeds rows of every page to the handler, next page is requested after the current one is handled.
+	 * Cancelling the returned future stops paging (no more pages are requested).
+	 */
+	private CompletableFuture<Void> forEachRowAsync(CqlSession activeSession, BoundStatement statement, Consumer<Row> rowHandler, Executor executor)
+	{
+		return forEachRowAsync(Collections.singletonList(activeSession.executeAsync(statement)), rowHandler, executor);
+	}
+	
+	/**
+	 * Same as above for already running queries, their rows are fed to the handler query by query (no ordering).
+	 */
+	private CompletableFuture<Void> forEachRowAsync(List<CompletionStage<AsyncResultSet>> queries, Consumer<Row> rowHandler, Executor executor)
+	{
+		CompletableFuture<Void> done = new CompletableFuture<Void>();
+		Iterator<CompletionStage<AsyncResultSet>> remaining = queries.iterator();
+		if (remaining.hasNext())
+		{
+			remaining.next().whenCompleteAsync((rs, error) -> handlePage(rs, error, rowHandler, executor, remaining, done), executor);
+		}
+		else
+		{
+			done.complete(null);
+		}
+		return done;
+	}
+	
+	private void handlePage(AsyncResultSet rs, Throwable error, Consumer<Row> rowHandler, Executor executor, Iterator<CompletionStage<AsyncResultSet>> remaining, CompletableFuture<Void> done)
+	{
+		if (done.isDone()) // cancelled, result is not needed anymore
+		{
+			return;
+		}
+		if (error != null)
+		{
+			done.completeExceptionally(error);
+			return;
+		}
+		
+		try
+		{
+			for (Row row : rs.currentPage())
+			{
+				rowHandler.accept(row);
 			}
 			
+			if (done.isDone())
+			{
+				return; // cancelled while the page was handled
+			}
+			if (rs.hasMorePages())
+			{
+				rs.fetchNextPage().whenCompleteAsync((next, nextError) -> handlePage(next, nextError, rowHandler, executor, remaining, done), executor);
+			}
+			else if (remaining.hasNext())
+			{
+				remaining.next().whenCompleteAsync((next, nextError) -> handlePage(next, nextError, rowHandler, executor, remaining, done), executor);
+			}
+			else
+			{
+				done.complete(null);
+			}
+		}
+		catch (Throwable e)
+		{
+			done.completeExceptionally(e);
+		}
+	}
+	
+	/**
+	 * Result of async rows processing, query error is recorded (see onQueryError). Cancelling the result stops the paging.
+	 */
+	private <T> CompletableFuture<T> finishAsync(CompletableFuture<Void> rows, String queryType, CqlSession activeSession, Supplier<T> result)
+	{
+		return EventStoreOperations.cancelling(rows, rows.handle((v, error) ->
+		{
+			if (error != null)
+			{
+				if (!(error instanceof CancellationException)) // abandoned by the caller, session is fine
+				{
+					onQueryError(queryType, error, activeSession);
+				}
+				throw new CompletionException(error);
+			}
+			return result.get();
+		}));
+	}
+	
+	/**
+	 * Records failure of a query executed on the given session (null if the session could not be obtained), the session is closed
+	 * and rebuilt by the next query if the failure shows connection loss. Queries still running on it fail as well, nothing is left null under them.
+	 */
+	private void onQueryError(String queryType, Throwable e, CqlSession failedSession)
+	{
+		log.error("Exception caused by CS "+queryType+" query, "+e.getMessage(), e);
+		
+		if (!breaker.recordFailure(e))
+		{
+			return; // query failed after retries, session is fine and the segment is going to be tried again
+		}
+		
+		synchronized (this)
+		{
+			if (failedSession == null || session != failedSession)
+			{
+				return; // rebuilt already
+			}
+			session = null;
+		}
+		log.warn("CS connection lost, session is going to be rebuilt.");
+		failedSession.closeAsync();
+	}
+	
+	/**
+	 * Dedups rows of one load by UID and pushes them to the consumer as events.
+	 */
+	private final class LoadSink implements Consumer<Row>
+	{
+		private final Consumer<Map<String, Object>> consumer;
+		private final UuidSet dedupByUid = acquireUidSet();
+		private final EventMapper mapper = new EventMapper(sharedTags);
+		private int duplicates = 0;
+		private int pushed = 0;
+		
+		LoadSink(Consumer<Map<String, Object>> aConsumer)
+		{
+			consumer = aConsumer;
+		}
+		
+		@Override
+		public void accept(Row row)
+		{
+			ByteBuffer uidBytes = row.getBytesUnsafe(0); // raw uuid, no UUID instance per row
+			long msb = uidBytes.getLong(uidBytes.position());
+			long lsb = uidBytes.getLong(uidBytes.position()+8);
+			if (!dedupByUid.add(msb, lsb))
+			{
+				++duplicates;
+				return;
+			}
+			
+			consumer.accept(mapper.map(msb, lsb, row)); // uid is converted to string only for emitted events
+			++pushed;
+		}
+		
+		int finish(TimeSegment period)
+		{
+			releaseUidSet(dedupByUid);
+			metrics.eventsPushed(pushed);
+			metrics.duplicatesFound(duplicates);
 			if (duplicates > 0)
 			{
 				log.warn("Found "+duplicates+" duplicates for "+period);
 			}
-			
-			return dedupByUid.size();
+			return pushed;
 		}
-		catch (Exception e)
+	}
+	
+	/**
+	 * Counts distinct UIDs of one count query and sums their hashes.
+	 */
+	private final class CountSink implements Consumer<Row>
+	{
+		private final UuidSet dedupByUid = acquireUidSet();
+		private int rows = 0;
+		private int duplicates = 0;
+		private long digest = 0L;
+		
+		@Override
+		public void accept(Row row)
 		{
-			log.error("Exception caused by CS Count query, "+e.getMessage(), e);
-			
-			if (session!=null) session.close();
-			session = null;
-			throw e;
+			ByteBuffer uidBytes = row.getBytesUnsafe(0);
+			long msb = uidBytes.getLong(uidBytes.position());
+			long lsb = uidBytes.getLong(uidBytes.position()+8);
+			++rows;
+			if (!dedupByUid.add(msb, lsb))
+			{
+				++duplicates;
+			}
+			else
+			{
+				digest += SegmentDigest.hashUid(msb, lsb);
+			}
+		}
+		
+		/**
+		 * Returns number of distinct UIDs, or the fetch limit if the query was cut off by its LIMIT (distinct count of the rows
+		 * read so far could fall under the limit because of duplicates, while the rest of the period was not read at all).
+		 */
+		int finish(TimeSegment period)
+		{
+			int returnValue = (rows >= cassandraFetchLimit)?cassandraFetchLimit:dedupByUid.size();
+			releaseUidSet(dedupByUid);
+			metrics.duplicatesFound(duplicates);
+			if (duplicates > 0)
+			{
+				log.warn("Found "+duplicates+" duplicates for "+period);
+			}
+			return returnValue;
 		}
 	}
 	
+	/**
+	 * Dedup sets are pooled and reused by subsequent queries (sets of failed queries and sets grown by scans are just dropped).
+	 */
+	private UuidSet acquireUidSet()
+	{
+		UuidSet returnValue = uidSets.poll();
+		return (returnValue != null)?returnValue:new UuidSet(Math.min(cassandraFetchLimit, 4096));
+	}
+	
+	private void releaseUidSet(UuidSet uidSet)
+	{
+		if (uidSet.capacity() > 4L*Math.max(cassandraFetchLimit, 4096))
+		{
+			return; // sized for a token range, not kept for queries capped by the fetch limit
+		}
+		uidSet.clear();
+		uidSets.offer(uidSet);
+	}
+	
 	@Override
 	public void close() throws IOException
 	{
 		try
 		{
-			if (session != null)
+			if (tagCatalog != null)
 			{
-				session.close();
+				tagCatalog.close();
+			}
+			
+			CqlSession closedSession;
+			synchronized (this)
+			{
+				closed = true;
+				closedSession = session;
 				session = null;
 			}
+			if (closedSession != null)
+			{
+				closedSession.close();
+			}
 		}
 		catch (Exception e)
 		{
@@ -1,24 +1,26 @@
 package org.logstashplugins;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Clock;
 import java.time.Duration;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.function.Consumer;
 
 import org.apache.logging.log4j.Logger;
 
-import com.datastax.oss.driver.shaded.guava.common.base.Stopwatch;
-
 import co.elastic.logstash.api.Configuration;
 import co.elastic.logstash.api.Context;
 import co.elastic.logstash.api.Input;
 import co.elastic.logstash.api.LogstashPlugin;
 import co.elastic.logstash.api.PluginConfigSpec;
 
+import com.datastax.oss.driver.api.core.DefaultConsistencyLevel;
+
 // class name must match plugin name
 @LogstashPlugin(name = "cassandra_sync")
 public class CassandraSync implements Input
@@ -36,6 +38,50 @@ public class CassandraSync implements Input
     // How soon is next round of syncing executed after previous round. (this also tells how long new events could sit in CS DB before being discovered)
     public static final PluginConfigSpec<Long> EVENT_SYNC_PERIOD_SECONDS_CONFIG = PluginConfigSpec.numSetting("syncperiod", 10);
 	
+	// How many segments are verified/loaded concurrently within one sync round (1 = sequential processing, oldest segment first).
+	public static final PluginConfigSpec<Long> SYNC_PARALLELISM_CONFIG = PluginConfigSpec.numSetting("syncparallelism", 1);
+	
+	// Interval in milliseconds of polling the newest events (tail), which are pushed right away, independently of sync rounds (0 = no tail,
+	// new events are found by the sync rounds only). Sync rounds still reconcile everything the tail misses.
+	public static final PluginConfigSpec<Long> TAIL_INTERVAL_MILLIS_CONFIG = PluginConfigSpec.numSetting("tailinterval", 0);
+	
+	// How late (in milliseconds) could an event be written after its 'created' time and still be picked by the tail.
+	public static final PluginConfigSpec<Long> TAIL_OVERLAP_MILLIS_CONFIG = PluginConfigSpec.numSetting("tailoverlap", 5000);
+	
+	// Dirty and Invalid segments within this many seconds before now are processed first, newest first. Older segments are processed
+	// (and Ok segments re-verified) in the order of their score, which favours recent, long unverified and often mismatching segments.
+	public static final PluginConfigSpec<Long> RECENT_WINDOW_SECONDS_CONFIG = PluginConfigSpec.numSetting("recentwindow", 3600);
+	
+	// Size of the queue (in events) between CS reads and pushing events into the pipeline, the next Invalid segment is read while the current one is pushed.
+	// 0 (default) = no prefetch, segments are read and pushed one after the other. Applies to sequential processing (syncparallelism 1) only, e.g. 10000.
+	public static final PluginConfigSpec<Long> PREFETCH_EVENTS_CONFIG = PluginConfigSpec.numSetting("prefetchevents", 0);
+	
+	// Optional limit of the prefetch queue by estimated heap size of queued events in bytes (0 = limited by number of events only).
+	public static final PluginConfigSpec<Long> PREFETCH_BYTES_CONFIG = PluginConfigSpec.numSetting("prefetchbytes", 0);
+	
+	// How are segments verified: "count" compares event counts, "digest" also compares order independent digests of event UIDs (same count, different events is detected)
+	// and audits Ok segments against ES once per audit period, narrowing a change down by bisection.
+	public static final PluginConfigSpec<String> VERIFY_MODE_CONFIG = PluginConfigSpec.stringSetting("verifymode", "count");
+	
+	// How often are Ok segments audited by "digest" verification (seconds), the audit hashes UIDs of the whole verified history in ES.
+	public static final PluginConfigSpec<Long> AUDIT_PERIOD_SECONDS_CONFIG = PluginConfigSpec.numSetting("auditperiod", 3600);
+	
+	// ES keyword field holding event UID, used by "digest" verification.
+	public static final PluginConfigSpec<String> ELASTIC_DIGEST_FIELD_CONFIG = PluginConfigSpec.stringSetting("digestfield", "uid.keyword");
+	
+	// Local file where the sync plan is regularly saved and restored from on startup (empty = no checkpoint, plan starts from scratch).
+	public static final PluginConfigSpec<String> CHECKPOINT_FILE_CONFIG = PluginConfigSpec.stringSetting("checkpointfile", "");
+	
+	// Minimal time between two checkpoint saves.
+	public static final PluginConfigSpec<Long> CHECKPOINT_PERIOD_SECONDS_CONFIG = PluginConfigSpec.numSetting("checkpointperiod", 60);
+	
+	// Date suffix of time-based index names under the index pattern (e.g. yyyy.MM.dd), indices older than the plan are dropped whole.
+	// Empty = events older than the plan are deleted by query over the whole index pattern every round.
+	public static final PluginConfigSpec<String> INDEX_DATE_FORMAT_CONFIG = PluginConfigSpec.stringSetting("indexdateformat", "");
+	
+	// How often are old indices dropped (and the boundary index cleaned by query) with time-based indices.
+	public static final PluginConfigSpec<Long> RETENTION_PERIOD_SECONDS_CONFIG = PluginConfigSpec.numSetting("retentionperiod", 3600);
+	
 	public static final PluginConfigSpec<String> ELASTIC_HOST_CONFIG = PluginConfigSpec.stringSetting("elastichost", "http://192.168.1.12");
 	
 	public static final PluginConfigSpec<Long> ELASTIC_PORT_CONFIG = PluginConfigSpec.numSetting("elasticport", 9200);
@@ -50,23 +96,85 @@ public class CassandraSync implements Input
 	
 	public static final PluginConfigSpec<Long> CASSANDRA_PORT_CONFIG = PluginConfigSpec.numSetting("cassandraport", 9042);
 	
+	// Number of rows fetched from CS per page while loading events, bounds memory held for a segment being loaded.
+	public static final PluginConfigSpec<Long> CASSANDRA_PAGE_SIZE_CONFIG = PluginConfigSpec.numSetting("cassandrapagesize", 500);
+	
+	// Query every included tag combination (partition) separately, token-aware and concurrently, instead of one 'tags IN ?' query.
+	public static final PluginConfigSpec<Boolean> CASSANDRA_PARTITION_FAN_OUT_CONFIG = PluginConfigSpec.booleanSetting("cassandrafanout", false);
+	
+	// How are CS events counted for verification: "exact" transfers and deduplicates UIDs, "fast" sums server side COUNT(*) of partitions queried in parallel (no dedup).
+	// Fast counts are used only for segments verified before under the sync limit, a fast count above the ES count is confirmed by an exact count before a load.
+	public static final PluginConfigSpec<String> CASSANDRA_COUNT_MODE_CONFIG = PluginConfigSpec.stringSetting("cassandracountmode", "exact");
+	
+	// Load the whole history by a parallel scan of CS token ranges when the index is empty, then continue with the sync plan.
+	public static final PluginConfigSpec<Boolean> BACKFILL_CONFIG = PluginConfigSpec.booleanSetting("backfill", false);
+	
+	// Number of token ranges scanned concurrently by the backfill.
+	public static final PluginConfigSpec<Long> BACKFILL_PARALLELISM_CONFIG = PluginConfigSpec.numSetting("backfillparallelism", 8);
+	
+	// Minimal number of token ranges the CS ring is split into for the backfill.
+	public static final PluginConfigSpec<Long> BACKFILL_SPLITS_CONFIG = PluginConfigSpec.numSetting("backfillsplits", 256);
+	
+	// Answer routine re-verification of old segments from cached counts (minutes for the last day, up to a week for data older than a quarter).
+	// Late CS writes and events removed from the index outside of this plugin are then found only after the cached counts expire.
+	public static final PluginConfigSpec<Boolean> COUNT_CACHE_CONFIG = PluginConfigSpec.booleanSetting("countcache", false);
+	
+	// Consistency level of CS loads and of counts confirming a mismatch before a load (e.g. QUORUM, LOCAL_QUORUM).
+	public static final PluginConfigSpec<String> CASSANDRA_CONSISTENCY_CONFIG = PluginConfigSpec.stringSetting("cassandraconsistency", "QUORUM");
+	
+	// Consistency level of CS counts re-verifying segments found Ok before (outside the recent window), escalated to cassandraconsistency on mismatch.
+	// Empty (default) = same as cassandraconsistency, a cheaper level (e.g. LOCAL_ONE) could miss the most recent writes until they are confirmed.
+	public static final PluginConfigSpec<String> CASSANDRA_ROUTINE_CONSISTENCY_CONFIG = PluginConfigSpec.stringSetting("cassandraroutineconsistency", "");
+	
+	// Delay after which a slow CS query is sent speculatively to another replica as well (ms), at most one extra execution per query.
+	// 0 (default) disables speculative executions, set e.g. about the p99 latency of CS reads (1000) to cut the tail latency at the cost of extra reads.
+	public static final PluginConfigSpec<Long> CASSANDRA_SPECULATIVE_DELAY_MILLIS_CONFIG = PluginConfigSpec.numSetting("cassandraspeculativedelay", 0);
+	
 	public static final PluginConfigSpec<String> CASSANDRA_INCLUSIVE_TAGS_CONFIG = PluginConfigSpec.stringSetting("inclusivetags", "0");
+	
+	// How often are tag combinations (SELECT DISTINCT tags) rediscovered in background, independently of the sync rounds.
+	public static final PluginConfigSpec<Long> CASSANDRA_TAG_REFRESH_PERIOD_SECONDS_CONFIG = PluginConfigSpec.numSetting("tagrefreshperiod", 300);
 
 	private String id;	
 	private final CountDownLatch done = new CountDownLatch(1);
 	private volatile boolean stopped;
 	private Logger log;
+	private SyncMetrics metrics;
 	
 	private Duration syncMillis;
 	private int syncLimit;
+	private int syncParallelism;
+	private Duration recentWindow;
+	private Duration tailInterval;
+	private Duration tailOverlap;
+	private int prefetchEvents;
+	private boolean backfill;
+	private int backfillParallelism;
+	private int backfillSplits;
+	private boolean countCache;
+	private long prefetchBytes;
+	private boolean digestVerification;
+	private String elasticDigestField;
+	private Path checkpointFile;
+	private Duration checkpointPeriod;
+	private Duration auditPeriod;
 	private int loadDepthDays;
 	private String elasticHost;
 	private int elasticPort;
 	private String elasticIndex;
+	private String indexDateFormat;
+	private Duration retentionPeriod;
 	private String cassandraHost;
 	private int cassandraPort;
 	private String cassandraDatacenter;
+	private int cassandraPageSize;
+	private boolean cassandraFanOut;
+	private boolean cassandraFastCount;
+	private DefaultConsistencyLevel cassandraConsistency;
+	private DefaultConsistencyLevel cassandraRoutineConsistency;
+	private Duration cassandraSpeculativeDelay;
 	private String inclusiveTags;
+	private long tagRefreshSeconds;
 	private String elasticUser;
 	private String elasticPass;
 		
@@ -74,18 +182,47 @@ public class CassandraSync implements Input
 	{
 		this.id = id;
 		this.log = context.getLogger(this);
+		this.metrics = new SyncMetrics(context.getMetric(this));
 		this.syncLimit = config.get(EVENT_SYNC_LIMIT_CONFIG).intValue();
 		this.syncMillis = Duration.ofMillis(config.get(EVENT_SYNC_PERIOD_SECONDS_CONFIG) * 1000L);
+		this.syncParallelism = (int)Math.max(1L, config.get(SYNC_PARALLELISM_CONFIG));
+		this.recentWindow = Duration.ofSeconds(Math.max(0L, config.get(RECENT_WINDOW_SECONDS_CONFIG)));
+		this.tailInterval = Duration.ofMillis(Math.max(0L, config.get(TAIL_INTERVAL_MILLIS_CONFIG)));
+		this.tailOverlap = Duration.ofMillis(Math.max(0L, config.get(TAIL_OVERLAP_MILLIS_CONFIG)));
+		this.prefetchEvents = (int)Math.max(0L, config.get(PREFETCH_EVENTS_CONFIG));
+		this.prefetchBytes = Math.max(0L, config.get(PREFETCH_BYTES_CONFIG));
+		this.backfill = config.get(BACKFILL_CONFIG);
+		this.backfillParallelism = (int)Math.max(1L, config.get(BACKFILL_PARALLELISM_CONFIG));
+		this.backfillSplits = (int)Math.max(1L, config.get(BACKFILL_SPLITS_CONFIG));
+		this.countCache = config.get(COUNT_CACHE_CONFIG);
+		this.digestVerification = "digest".equalsIgnoreCase(config.get(VERIFY_MODE_CONFIG));
+		this.elasticDigestField = config.get(ELASTIC_DIGEST_FIELD_CONFIG);
+		this.checkpointFile = config.get(CHECKPOINT_FILE_CONFIG).isEmpty()?null:Paths.get(config.get(CHECKPOINT_FILE_CONFIG));
+		this.checkpointPeriod = Duration.ofSeconds(config.get(CHECKPOINT_PERIOD_SECONDS_CONFIG));
+		this.auditPeriod = Duration.ofSeconds(Math.max(0L, config.get(AUDIT_PERIOD_SECONDS_CONFIG)));
 		this.loadDepthDays = config.get(HISTORY_LOAD_DEPTH_DAYS_CONFIG).intValue();
 		this.elasticHost = config.get(ELASTIC_HOST_CONFIG);
 		this.elasticUser = config.get(ELASTIC_USER_AUTH_USER_CONFIG);
 		this.elasticPass = config.get(ELASTIC_USER_AUTH_PASS_CONFIG);
 		this.elasticPort = config.get(ELASTIC_PORT_CONFIG).intValue();
 		this.elasticIndex = config.get(INDEX_CONFIG);
+		this.indexDateFormat = config.get(INDEX_DATE_FORMAT_CONFIG);
+		if (!indexDateFormat.isEmpty())
+		{
+			new TimeBasedIndices(indexDateFormat); // invalid format fails the plugin start, not every sync round
+		}
+		this.retentionPeriod = Duration.ofSeconds(Math.max(0L, config.get(RETENTION_PERIOD_SECONDS_CONFIG)));
 		this.cassandraHost = config.get(CASSANDRA_HOST_CONFIG);
 		this.cassandraPort = config.get(CASSANDRA_PORT_CONFIG).intValue();
 		this.cassandraDatacenter = config.get(CASSANDRA_DATACENTER_CONFIG);
+		this.cassandraPageSize = (int)Math.max(1L, config.get(CASSANDRA_PAGE_SIZE_CONFIG));
+		this.cassandraFanOut = config.get(CASSANDRA_PARTITION_FAN_OUT_CONFIG);
+		this.cassandraFastCount = "fast".equalsIgnoreCase(config.get(CASSANDRA_COUNT_MODE_CONFIG));
+		this.cassandraConsistency = DefaultConsistencyLevel.valueOf(config.get(CASSANDRA_CONSISTENCY_CONFIG).toUpperCase());
+		this.cassandraRoutineConsistency = config.get(CASSANDRA_ROUTINE_CONSISTENCY_CONFIG).isEmpty()?cassandraConsistency:DefaultConsistencyLevel.valueOf(config.get(CASSANDRA_ROUTINE_CONSISTENCY_CONFIG).toUpperCase());
+		this.cassandraSpeculativeDelay = Duration.ofMillis(Math.max(0L, config.get(CASSANDRA_SPECULATIVE_DELAY_MILLIS_CONFIG)));
 		this.inclusiveTags = config.get(CASSANDRA_INCLUSIVE_TAGS_CONFIG);
+		this.tagRefreshSeconds = Math.max(1L, config.get(CASSANDRA_TAG_REFRESH_PERIOD_SECONDS_CONFIG));
 				
 		log.info("Plugin CassandraSync starting.");
 	}
@@ -93,131 +230,29 @@ public class CassandraSync implements Input
 	@Override
 	public void start(Consumer<Map<String, Object>> consumer)
 	{
-		try 
+		Clock clock = Clock.systemUTC();
+		try (SyncLoop loop = new SyncLoop(syncLimit, syncMillis, syncParallelism, loadDepthDays, digestVerification, checkpointFile, checkpointPeriod,
+										  () -> new ElasticSearchOperations(elasticHost, elasticPort, elasticUser, elasticPass, elasticIndex, elasticDigestField, indexDateFormat, retentionPeriod, clock, metrics, log),
+										  () -> new CassandraSearchOperations(cassandraHost, cassandraPort, syncLimit, cassandraPageSize, cassandraFanOut, cassandraFastCount, cassandraConsistency, cassandraRoutineConsistency, cassandraSpeculativeDelay, cassandraDatacenter, inclusiveTags, tagRefreshSeconds, metrics, log),
+										  clock, Thread::sleep, metrics, log))
 		{
-			DataSyncPlan plan = new DataSyncPlan(loadDepthDays, syncLimit);
-			ElasticSearchOperations elasticOps = null;
-			CassandraSearchOperations cassandraOps = null;
-			Stopwatch sw = Stopwatch.createStarted();
-			int segmentsProcessed = 0;
-			
-			while (!stopped)
+			loop.setRecentWindow(recentWindow);
+			loop.setAuditPeriod(auditPeriod);
+			loop.enablePrefetch(prefetchEvents, prefetchBytes);
+			loop.enableTail(tailInterval, tailOverlap);
+			if (backfill)
 			{
-				try
-				{
-					if (elasticOps == null || cassandraOps == null)
-					{
-						// init
-						log.info("Plugin CassandraSync initializing.");
-						elasticOps = new ElasticSearchOperations(elasticHost, elasticPort, elasticUser, elasticPass, elasticIndex, log);
-						cassandraOps = new CassandraSearchOperations(cassandraHost, cassandraPort, syncLimit, cassandraDatacenter, inclusiveTags, log);						
-						log.info("Plugin CassandraSync initialized, starting sync.");
-					}
-										
-					sw.reset(); sw.start();
-					segmentsProcessed = 0;
-					cassandraOps.refreshTagCombinations(inclusiveTags);
-					TimeSegment planBoundary = plan.ShiftToNow();
-					plan.Repartition();
-					long deletedCount = elasticOps.deleteOlder(planBoundary);
-					if (deletedCount > 0)
-					{
-						log.info("Deleted "+deletedCount+" events older than "+planBoundary.getFromTs());
-					}
-					
-					for (TimeSegment ts : plan)
-					{
-						if (ts.getStatus() == TimeSegmentStatus.Invalid)
-						{
-							List<Map<String, Object>> data = cassandraOps.loadCsData(ts);
-							for (Map<String, Object> ev : data)
-							{
-								consumer.accept(ev);
-							}
-							log.info("Pushed "+data.size()+" events for TS: "+ts);
-							ts.resetStatus();
-							++segmentsProcessed;
-						}
-						  
-						if (ts.getStatus() == TimeSegmentStatus.Dirty)
-						{
-							int countEs = elasticOps.countEsData(ts);
-							if (countEs >= syncLimit)
-							{
-								ts.setCheckResult(countEs, Integer.MAX_VALUE); // it is clear that we need to load some data (and also split segment, no need to query CS now)
-							}
-							else
-							{ 
-								int countCs = cassandraOps.countCsData(ts);
-								ts.setCheckResult(countEs, countCs); // segment becomes either Ok or invalid (invalid if count does not match)
-								if (ts.getStatus() == TimeSegmentStatus.Invalid) //when segment transitions from dirty -> invalid, neighbouring segments become dirty
-								{
-									List<Map<String, Object>> data = cassandraOps.loadCsData(ts);
-									for (Map<String, Object> ev : data)
-									{
-										consumer.accept(ev);
-									}
-									log.info("Pushed "+data.size()+" events for TS: "+ts);
-									ts.resetStatus();
-									ts.getPrevious().resetStatus(); // Flood 'dirty' to next
-									ts.getNext().resetStatus(); // and flood 'dirty' to previous until it is verified by setCheckResult without loading any data.
-								}
-							}
-							++segmentsProcessed;
-						}
-						
-						if (sw.elapsed().compareTo(syncMillis) > 0)
-						{
-							break;
-						}
-					}
-					
-					plan.ShiftToNow();
-					plan.Repartition();
-					
-					// Mark some segments as dirty, depending of how much time is left and prioritize more recent periods
-					// sleep for the remaining time of sync period (if there was no work to)
-					long elapsed = sw.elapsed().toMillis();
-					long remainingMillis = Math.max(0,syncMillis.minus(sw.elapsed()).toMillis());
-					long targetWorkMillisRemaining = Math.max(0L, remainingMillis - syncMillis.toMillis()/2);
-					long segmentsToMarkDirty = Math.min(1+2*segmentsProcessed, targetWorkMillisRemaining / (2*Math.max(1L, elapsed/(1+segmentsProcessed)))); // balanced to not jump from idle to high processing load
-					log.info("Processed "+segmentsProcessed+" segments (plan: "+plan+") in "+elapsed+"ms, going to mark up to "+segmentsToMarkDirty+" segments as dirty and sleep for the remaining "+remainingMillis+"ms");					
-					try { Thread.sleep(remainingMillis); } catch (InterruptedException ee) {/*ignore*/};
-					plan.markDirty(segmentsToMarkDirty);
-				}
-				catch (InterruptedException e)
-				{
-					// reinit after wait period on error
-					log.info("InterruptedException while sleeping, Plugin CassandraSync will continue after 30s.");
-					try { Thread.sleep(30000); } catch (InterruptedException ee) {/*ignore*/};
-				}			
-				catch (Exception e)
-				{
-					log.error("Error while running CassandraSync input plugin. Plugin CassandraSync will continue after 30s.", e);
-					try { Thread.sleep(30000); } catch (InterruptedException ee) {/*ignore*/};
-					
-					if (elasticOps != null)
-					{
-						try {
-							elasticOps.close();
-						} catch (IOException e1) {
-							log.error("Error while deleting elasticOps", e1);
-						}
-					}
-					elasticOps = null;
-					
-					if (cassandraOps != null)
-					{
-						try {
-						cassandraOps.close();
-						} catch (IOException e1) {
-							log.error("Error while deleting cassandraOps", e1);
-						}
-					}
-					cassandraOps = null;
-				}
+				loop.enableBackfill(backfillParallelism, backfillSplits);
 			}
-			
+			if (countCache)
+			{
+				loop.enableCountCache();
+			}
+			loop.run(consumer, () -> stopped);
+		}
+		catch (IOException e)
+		{
+			log.error("Error while closing sync loop", e);
 		}
 		finally
 		{
@@ -247,6 +282,8 @@ public class CassandraSync implements Input
 	public Collection<PluginConfigSpec<?>> configSchema()
 	{
 		return Arrays.asList(INDEX_CONFIG, 
+				             INDEX_DATE_FORMAT_CONFIG,
+				             RETENTION_PERIOD_SECONDS_CONFIG,
 				             HISTORY_LOAD_DEPTH_DAYS_CONFIG,
 				             ELASTIC_HOST_CONFIG, 
 				             ELASTIC_PORT_CONFIG,
@@ -254,10 +291,32 @@ public class CassandraSync implements Input
 				             ELASTIC_USER_AUTH_PASS_CONFIG,
 				             CASSANDRA_HOST_CONFIG, 
 				             CASSANDRA_PORT_CONFIG,
+				             CASSANDRA_PAGE_SIZE_CONFIG,
+				             CASSANDRA_PARTITION_FAN_OUT_CONFIG,
+				             CASSANDRA_COUNT_MODE_CONFIG,
+				             CASSANDRA_CONSISTENCY_CONFIG,
+				             CASSANDRA_ROUTINE_CONSISTENCY_CONFIG,
+				             CASSANDRA_SPECULATIVE_DELAY_MILLIS_CONFIG,
 				             CASSANDRA_INCLUSIVE_TAGS_CONFIG,
+				             CASSANDRA_TAG_REFRESH_PERIOD_SECONDS_CONFIG,
 				             CASSANDRA_DATACENTER_CONFIG,
 				             EVENT_SYNC_LIMIT_CONFIG,
-				             EVENT_SYNC_PERIOD_SECONDS_CONFIG);
+				             EVENT_SYNC_PERIOD_SECONDS_CONFIG,
+				             SYNC_PARALLELISM_CONFIG,
+				             RECENT_WINDOW_SECONDS_CONFIG,
+				             TAIL_INTERVAL_MILLIS_CONFIG,
+				             TAIL_OVERLAP_MILLIS_CONFIG,
+				             PREFETCH_EVENTS_CONFIG,
+				             PREFETCH_BYTES_CONFIG,
+				             BACKFILL_CONFIG,
+				             BACKFILL_PARALLELISM_CONFIG,
+				             BACKFILL_SPLITS_CONFIG,
+				             COUNT_CACHE_CONFIG,
+				             VERIFY_MODE_CONFIG,
+				             ELASTIC_DIGEST_FIELD_CONFIG,
+				             AUDIT_PERIOD_SECONDS_CONFIG,
+				             CHECKPOINT_FILE_CONFIG,
+				             CHECKPOINT_PERIOD_SECONDS_CONFIG);
 	}
 
 	@Override
@@ -0,0 +1,108 @@
+package org.logstashplugins;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+import com.datastax.oss.driver.api.core.AllNodesFailedException;
+import com.datastax.oss.driver.api.core.NoNodeAvailableException;
+import com.datastax.oss.driver.api.core.connection.ClosedConnectionException;
+import com.datastax.oss.driver.api.core.connection.ConnectionInitException;
+import com.datastax.oss.driver.api.core.connection.HeartbeatException;
+
+/**
+ * Decides when the CS session is torn down. Timeouts and errors of busy nodes are left to the retry policy and to speculative
+ * executions, the session (with its prepared statements and connection pools) is kept. Only consecutive connectivity errors
+ * (no node reachable, connections closed) open the breaker: the session is rebuilt and new one is not attempted before the cool-down.
+ */
+final class CircuitBreaker
+{
+	private final int threshold;
+	private final long coolDownMillis;
+	private final Clock clock;
+	private int failures = 0; // consecutive connectivity errors
+	private long openUntil = 0L;
+
+	CircuitBreaker(int aThreshold, Duration aCoolDown, Clock aClock)
+	{
+		this.threshold = Math.max(1, aThreshold);
+		this.coolDownMillis = aCoolDown.toMillis();
+		this.clock = aClock;
+	}
+
+	synchronized void recordSuccess()
+	{
+		failures = 0;
+	}
+
+	/**
+	 * Counts the error if it is a connectivity error, returns true if the breaker opened (session should be rebuilt).
+	 */
+	synchronized boolean recordFailure(Throwable error)
+	{
+		if (!isConnectivityError(error) || ++failures < threshold)
+		{
+			return false;
+		}
+		trip();
+		return true;
+	}
+
+	/**
+	 * Opens the breaker regardless of the error count, e.g. when a new session failed to connect.
+	 */
+	synchronized void trip()
+	{
+		failures = 0;
+		openUntil = clock.millis() + coolDownMillis;
+	}
+
+	synchronized boolean isOpen()
+	{
+		return clock.millis() < openUntil;
+	}
+
+	/**
+	 * Fails fast while the breaker is open.
+	 */
+	synchronized void checkAvailable()
+	{
+		long remaining = openUntil - clock.millis();
+		if (remaining > 0)
+		{
+			throw new IllegalStateException("CS connection lost, next attempt to connect in "+remaining+"ms.");
+		}
+	}
+
+	static boolean isConnectivityError(Throwable error)
+	{
+		while ((error instanceof CompletionException || error instanceof ExecutionException) && error.getCause() != null)
+		{
+			error = error.getCause();
+		}
+
+		if (error instanceof NoNodeAvailableException || error instanceof ClosedConnectionException
+			|| error instanceof HeartbeatException || error instanceof ConnectionInitException)
+		{
+			return true;
+		}
+		if (error instanceof AllNodesFailedException) // every node of the query plan failed, connectivity only if none of them answered
+		{
+			AllNodesFailedException allFailed = (AllNodesFailedException)error;
+			for (List<Throwable> nodeErrors : allFailed.getAllErrors().values()) // every attempt, a node could be tried more than once
+			{
+				for (Throwable nodeError : nodeErrors)
+				{
+					if (!isConnectivityError(nodeError))
+					{
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+}
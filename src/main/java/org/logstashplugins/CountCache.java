@@ -0,0 +1,154 @@
+package org.logstashplugins;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Results of verifications which found segments Ok, so that routine re-verification of old history (which does not change
+ * unless the plugin pushes into it) is answered without counting both stores again.
+ *
+ * Entries are keyed by segment bounds and the version of included tag combinations (CS counts of other versions are not comparable).
+ * They expire by the age of the segment when cached: minutes for the last day, hours for the last week, a day for the last quarter
+ * and a week for anything older. Pushes into a range (loads, tail) and changes found by the digest audit invalidate overlapping entries.
+ * Accessed by the loop thread and by the tail thread.
+ */
+final class CountCache
+{
+	private static final long MINUTE_MILLIS = 60000L;
+
+	private static final long HOUR_MILLIS = 60*MINUTE_MILLIS;
+
+	private static final long DAY_MILLIS = 24*HOUR_MILLIS;
+
+	// segment which ended less than AGE_TIERS_MILLIS[i] ago is cached for TTL_MILLIS[i], older ones for the last TTL
+	private static final long[] AGE_TIERS_MILLIS = { DAY_MILLIS, 7*DAY_MILLIS, 90*DAY_MILLIS };
+
+	private static final long[] TTL_MILLIS = { 5*MINUTE_MILLIS, HOUR_MILLIS, DAY_MILLIS, 7*DAY_MILLIS };
+
+	private static final class Key
+	{
+		final long from;
+		final long to;
+		final long tagVersion;
+
+		Key(long aFrom, long aTo, long aTagVersion)
+		{
+			from = aFrom;
+			to = aTo;
+			tagVersion = aTagVersion;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key))
+			{
+				return false;
+			}
+			Key other = (Key)o;
+			return from == other.from && to == other.to && tagVersion == other.tagVersion;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Long.hashCode(from)*31*31 + Long.hashCode(to)*31 + Long.hashCode(tagVersion);
+		}
+	}
+
+	private static final class Entry
+	{
+		final int elCount;
+		final int csCount;
+		final long elDigest;
+		final boolean digestKnown;
+		final long expiresAt;
+
+		Entry(TimeSegment ts, long aExpiresAt)
+		{
+			elCount = ts.getElCount();
+			csCount = ts.getCsCount();
+			elDigest = ts.getElDigest();
+			digestKnown = ts.isDigestKnown();
+			expiresAt = aExpiresAt;
+		}
+	}
+
+	private final Map<Key, Entry> entries = new HashMap<Key, Entry>();
+
+	/**
+	 * How long is the result of a segment which ended ageMillis ago cached.
+	 */
+	static long ttlMillis(long ageMillis)
+	{
+		int tier = 0;
+		while (tier < AGE_TIERS_MILLIS.length && ageMillis >= AGE_TIERS_MILLIS[tier])
+		{
+			++tier;
+		}
+		return TTL_MILLIS[tier];
+	}
+
+	/**
+	 * Sets the check result of the segment from the cache, returns false if there is no valid entry for its bounds.
+	 */
+	synchronized boolean apply(TimeSegment ts, long tagVersion, long nowMillis)
+	{
+		Key key = new Key(ts.getFromMillis(), ts.getToMillis(), tagVersion);
+		Entry entry = entries.get(key);
+		if (entry == null)
+		{
+			return false;
+		}
+		if (entry.expiresAt <= nowMillis)
+		{
+			entries.remove(key);
+			return false;
+		}
+
+		if (entry.digestKnown)
+		{
+			ts.setCheckResult(new SegmentDigest(entry.elCount, entry.elDigest), new SegmentDigest(entry.csCount, (entry.csCount == entry.elCount)?entry.elDigest:0L));
+		}
+		else
+		{
+			ts.setCheckResult(entry.elCount, entry.csCount);
+		}
+		return true;
+	}
+
+	/**
+	 * Caches the result of an Ok segment, valid entry of the same bounds is kept (its expiry is not extended by results served from it).
+	 */
+	synchronized void put(TimeSegment ts, long tagVersion, long nowMillis)
+	{
+		if (ts.getStatus() != TimeSegmentStatus.Ok || ts.getVerifiedAt() == 0L)
+		{
+			return;
+		}
+
+		Key key = new Key(ts.getFromMillis(), ts.getToMillis(), tagVersion);
+		Entry entry = entries.get(key);
+		if (entry == null || entry.expiresAt <= nowMillis)
+		{
+			entries.put(key, new Entry(ts, nowMillis + ttlMillis(nowMillis - ts.getToMillis())));
+		}
+	}
+
+	/**
+	 * Drops entries overlapping [from, to), e.g. after events were pushed into the range.
+	 */
+	synchronized void invalidate(long from, long to)
+	{
+		entries.keySet().removeIf(key -> key.from < to && from < key.to);
+	}
+
+	/**
+	 * Drops expired entries and entries of other tag versions, returns number of remaining entries.
+	 */
+	synchronized int evict(long tagVersion, long nowMillis)
+	{
+		entries.entrySet().removeIf(e -> e.getKey().tagVersion != tagVersion || e.getValue().expiresAt <= nowMillis);
+		return entries.size();
+	}
+}
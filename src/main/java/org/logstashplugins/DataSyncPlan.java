@@ -1,84 +1,230 @@
 package org.logstashplugins;
 
+import java.time.Clock;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 
 public final class DataSyncPlan implements Iterable<TimeSegment> {
 	
-	private List<TimeSegment> segments;
+	private static final byte OK = SegmentTable.toByte(TimeSegmentStatus.Ok);
+	
+	private static final byte INVALID = SegmentTable.toByte(TimeSegmentStatus.Invalid);
+	
+	private static final byte DIRTY = SegmentTable.toByte(TimeSegmentStatus.Dirty);
+	
+	private SegmentTable segments;
 	private int maximumSegmentRecords;
 	private int historyLengthDays;
 	private int invalidCount;
 	private int dirtyCount;
 	private int okCount;
+	private final Clock clock;
 	
 	public DataSyncPlan(int aHistoryLengthDays, int aMaximumSegmentSize)
 	{
-		this.segments = new ArrayList<TimeSegment>();
+		this(aHistoryLengthDays, aMaximumSegmentSize, Clock.systemUTC());
+	}
+	
+	/**
+	 * Plan following the supplied clock (e.g. virtual clock of a simulation).
+	 */
+	public DataSyncPlan(int aHistoryLengthDays, int aMaximumSegmentSize, Clock aClock)
+	{
+		this.segments = new SegmentTable(16);
 		this.maximumSegmentRecords = aMaximumSegmentSize;
 		this.historyLengthDays = aHistoryLengthDays;
+		this.clock = aClock;
 		
-		Instant aTo = Instant.now();
+		Instant aTo = clock.instant();
 		Instant aFrom = aTo.minus(aHistoryLengthDays, ChronoUnit.DAYS).truncatedTo(ChronoUnit.DAYS);
 		
-		segments.add(new TimeSegment(aFrom.toEpochMilli(), aTo.toEpochMilli()));
+		segments.add(aFrom.toEpochMilli(), aTo.toEpochMilli());
+	}
+	
+	/**
+	 * Plan restored from previously saved segments (see PlanCheckpoint), segments must be adjacent and ordered.
+	 */
+	DataSyncPlan(int aHistoryLengthDays, int aMaximumSegmentSize, SegmentTable aSegments)
+	{
+		this(aHistoryLengthDays, aMaximumSegmentSize, aSegments, Clock.systemUTC());
+	}
+	
+	DataSyncPlan(int aHistoryLengthDays, int aMaximumSegmentSize, SegmentTable aSegments, Clock aClock)
+	{
+		this.segments = aSegments;
+		this.maximumSegmentRecords = aMaximumSegmentSize;
+		this.historyLengthDays = aHistoryLengthDays;
+		this.clock = aClock;
+	}
+	
+	SegmentTable getTable()
+	{
+		return segments;
 	}
 	
 	/**
-	 * Repartitions the plan. Ok segments are merged if still under limit, all segments are subdivided if exceeding the limit.
-	 * @throws Exception 
+	 * Repartitions the plan. Ok segments are merged if still under limit, all segments are subdivided in the middle if exceeding the limit.
 	 */
-	public void Repartition() throws Exception
+	public void Repartition()
 	{
-			List<TimeSegment> newSegments = new ArrayList<TimeSegment>();			
+		Repartition(Collections.<Long, long[]>emptyMap());
+	}
+	
+	/**
+	 * Repartitions the plan. Ok segments are merged if still under limit, segments exceeding the limit are subdivided at the supplied
+	 * split points (keyed by segment start, e.g. from ES histogram), or in the middle if there are no valid split points for the segment.
+	 * Runs in two linear passes over the segment table, forward pass merges in place, backward pass expands splits in place.
+	 */
+	public void Repartition(Map<Long, long[]> splitPoints)
+	{
+			SegmentTable t = segments;
 			
-			while (segments.size() > 0)
-			{				
-				TimeSegment lastSegment = segments.remove(0); 
-				newSegments.add(lastSegment);
-				
-				while (segments.size() > 0 && lastSegment.couldMerge(segments.get(0), maximumSegmentRecords))
+			// merge adjacent Ok segments while under limit, compacting the table
+			int last = -1;
+			int splits = 0;
+			for (int i = 0; i < t.size; ++i)
+			{
+				if (last >= 0 && t.to[last] == t.from[i] && t.status[last] == OK && t.status[i] == OK && t.elCount[last] + t.elCount[i] < maximumSegmentRecords)
 				{
-					lastSegment.Merge(segments.remove(0));
+					t.to[last] = t.to[i];
+					t.csCount[last] += t.csCount[i];
+					t.elCount[last] += t.elCount[i];
+					t.elDigest[last] += t.elDigest[i]; // digests are additive
+					t.digestKnown[last] &= t.digestKnown[i];
+					t.verifiedAt[last] = Math.min(t.verifiedAt[last], t.verifiedAt[i]); // merged segment is as stale as its older part
+					t.mismatches[last] |= t.mismatches[i];
+					continue;
 				}
-							
-				if (lastSegment.getElCount() >= maximumSegmentRecords) // it is important to split for equal amount - this means the segment has synclimit or more records (is hitting the upper query limit)
+				
+				if (last >= 0 && isOversized(t, last)) 
 				{
-					lastSegment = lastSegment.Split();
-					newSegments.add(lastSegment);
+					splits += splitCount(splitPoints, t.from[last], t.to[last]);
 				}
+				t.copy(i, ++last);
+			}
+			if (last >= 0 && isOversized(t, last))
+			{
+				splits += splitCount(splitPoints, t.from[last], t.to[last]);
 			}
+			t.size = last+1;
 			
-			segments = newSegments;
-			for (int i = segments.size()-1; i > 0; --i) // update next and previous pointers in segments in order to allow spreading of dirty state
+			// split segments exceeding limit, all parts become Dirty
+			// it is important to split for equal amount - this means the segment has synclimit or more records (is hitting the upper query limit)
+			if (splits > 0)
 			{
-				segments.get(i).setPrevious(segments.get(i-1));
+				t.ensureCapacity(t.size + splits);
+				int target = t.size + splits;
+				for (int i = t.size-1; i >= 0; --i)
+				{
+					if (isOversized(t, i))
+					{
+						long from = t.from[i];
+						long to = t.to[i];
+						long verifiedAt = t.verifiedAt[i];
+						byte mismatches = t.mismatches[i];
+						long[] points = validSplitPoints(splitPoints, from, to);
+						if (points == null)
+						{
+							points = new long[] { (from+to)/2L };
+						}
+						for (int p = points.length; p >= 0; --p) // parts inherit verification history of the split segment
+						{
+							long partFrom = (p > 0)?points[p-1]:from;
+							t.setDirty(--target, partFrom, to);
+							t.verifiedAt[target] = verifiedAt;
+							t.mismatches[target] = mismatches;
+							to = partFrom;
+						}
+					}
+					else
+					{
+						t.copy(i, --target);
+					}
+				}
+				t.size += splits;
 			}
 			
 			dirtyCount = 0;
 			invalidCount = 0;
 			okCount = 0;
-			for (TimeSegment ts : segments)
+			for (int i = 0; i < t.size; ++i)
 			{
-				TimeSegmentStatus tss = ts.getStatus();
-				if (tss == TimeSegmentStatus.Dirty)
+				byte tss = t.status[i];
+				if (tss == DIRTY)
 				{
 					++dirtyCount;
 				} 
-				else if (tss == TimeSegmentStatus.Invalid)
+				else if (tss == INVALID)
 				{
 					++invalidCount;
 				}
-				else if (tss == TimeSegmentStatus.Ok)
+				else if (tss == OK)
 				{
 					++okCount;
 				}
 			}
 	}
 	
+	/**
+	 * Segment is oversized if either count reached the limit, a CS count at the limit is cut off by the query limit
+	 * and loading it would push only a part of the segment.
+	 */
+	private boolean isOversized(SegmentTable t, int i)
+	{
+		return t.elCount[i] >= maximumSegmentRecords || t.csCount[i] >= maximumSegmentRecords;
+	}
+	
+	private static int splitCount(Map<Long, long[]> splitPoints, long from, long to)
+	{
+		long[] points = validSplitPoints(splitPoints, from, to);
+		return (points == null)?1:points.length;
+	}
+	
+	/**
+	 * Returns split points of the segment if they are strictly increasing and inside the segment, null otherwise.
+	 */
+	private static long[] validSplitPoints(Map<Long, long[]> splitPoints, long from, long to)
+	{
+		long[] points = splitPoints.get(from);
+		if (points == null || points.length == 0)
+		{
+			return null;
+		}
+		
+		long previous = from;
+		for (long point : points)
+		{
+			if (point <= previous || point >= to)
+			{
+				return null;
+			}
+			previous = point;
+		}
+		return points;
+	}
+	
+	/**
+	 * Returns segments exceeding the limit (in ES or in CS), these are going to be split by the next Repartition.
+	 */
+	public List<TimeSegment> getOversizedSegments()
+	{
+		List<TimeSegment> returnValue = new ArrayList<TimeSegment>();
+		for (int i = 0; i < segments.size; ++i)
+		{
+			if (isOversized(segments, i))
+			{
+				returnValue.add(new TimeSegment(segments, i));
+			}
+		}
+		return returnValue;
+	}
+	
 	/**
 	 * Clips the old parts of the plan and adds most recent segment as necessary.
 	 * Returns segment which encapsulates whole plan.
@@ -86,28 +232,42 @@ public final class DataSyncPlan implements Iterable<TimeSegment> {
 	 */
 	public TimeSegment ShiftToNow()
 	{
-		Instant nowInstant = Instant.now();
+		Instant nowInstant = clock.instant();
 		long now = nowInstant.toEpochMilli();
 		long from = nowInstant.minus(historyLengthDays, ChronoUnit.DAYS).truncatedTo(ChronoUnit.DAYS).toEpochMilli();
 		
 		TimeSegment returnValue = new TimeSegment(from, now);
+		SegmentTable t = segments;
 	
 		// clip plan to latest period
-		while (segments.size() > 0 && segments.get(0).getToTsInstant().toEpochMilli() < from)
+		int clipped = 0;
+		while (clipped < t.size && t.to[clipped] < from)
+		{
+			++clipped;
+		}
+		if (clipped > 0)
+		{
+			t.shift(clipped, 0);
+		}
+		
+		if (t.size > 0 && t.to[0] >= from && t.from[0] < from) // clip oldest part of first segment, whole segment has to be validated again
 		{
-			segments.remove(0);
+			t.setDirty(0, from, t.to[0]);
 		}
 		
-		if (segments.size() > 0)
+		// cover history not covered by plan yet (restored plan could be shorter than the required history)
+		if (t.size == 0 || t.from[0] > from)
 		{
-			segments.get(0).ClipBy(from);
+			long to = (t.size > 0)?t.from[0]:now;
+			t.shift(0, 1);
+			t.setDirty(0, from, to);
 		}
 		
 		// extend plan 'up to' now		
-		from = segments.get(segments.size()-1).getToTsInstant().toEpochMilli();
+		from = t.to[t.size-1];
 		if (now > from)
 		{
-			segments.add(new TimeSegment(from,  now));
+			t.add(from, now);
 		}
 		
 		return returnValue;
@@ -124,42 +284,50 @@ public final class DataSyncPlan implements Iterable<TimeSegment> {
 			
 			@Override
 			public TimeSegment next() {
-				return segments.get(index++);
+				if (index >= segments.size)
+				{
+					throw new NoSuchElementException();
+				}
+				return new TimeSegment(segments, index++);
 			}
 			
 			@Override
 			public boolean hasNext() {
-				return index < segments.size();
+				return index < segments.size;
 			}
 		};
 	}
 
-	// Mark additional segments as dirty with higher priority towards latest period.
-	public void markDirty(long segmentsToMarkDirty)
+	/**
+	 * Returns segments currently having the given status (in plan order).
+	 */
+	public List<TimeSegment> getSegments(TimeSegmentStatus aStatus)
 	{
-		GeomDistribution distribution = new GeomDistribution(this.okCount, segmentsToMarkDirty);
-		
-		for (int i = segments.size()-1; i >= 0; --i)
+		List<TimeSegment> returnValue = new ArrayList<TimeSegment>();
+		byte status = SegmentTable.toByte(aStatus);
+		for (int i = 0; i < segments.size; ++i)
 		{
-			if (segmentsToMarkDirty <= 0)
+			if (segments.status[i] == status)
 			{
-				break;
+				returnValue.add(new TimeSegment(segments, i));
 			}
-			
-			if (segments.get(i).getStatus() == TimeSegmentStatus.Ok &&
-				distribution.pickNext())
-			{
-				segments.get(i).resetStatus();
-				--segmentsToMarkDirty;
-			}
-		}		
+		}
+		return returnValue;
 	}
 
+	public int getTotalCount() { return segments.size; }
+	
+	public int getDirtyCount() { return dirtyCount; }
+	
+	public int getInvalidCount() { return invalidCount; }
+	
+	public int getOkCount() { return okCount; }
+
 	// Total is always accurate, other counts are only recalculated at plan Repartition.
 	@Override
 	public String toString() 
 	{
-		return "[total: "+segments.size()+", Dirty: "+dirtyCount+", Invalid: "+invalidCount+", Ok: "+okCount+"]";
+		return "[total: "+segments.size+", Dirty: "+dirtyCount+", Invalid: "+invalidCount+", Ok: "+okCount+"]";
 	}
 
 }
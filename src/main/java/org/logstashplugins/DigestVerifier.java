@@ -0,0 +1,152 @@
+package org.logstashplugins;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Audits Ok segments of the plan against ES using additive digests (see SegmentDigest).
+ *
+ * Each run of adjacent Ok segments with known digest is compared with the current ES digest of its whole time range
+ * in a single request. Mismatching runs are bisected, only the left half is queried and the right half is derived
+ * by subtraction from the parent, so a changed segment is located in O(log n) round trips without loading any data.
+ */
+public final class DigestVerifier
+{
+	private static final class Node
+	{
+		final int first;
+		final int last;
+		SegmentDigest actual;
+
+		Node(int aFirst, int aLast)
+		{
+			first = aFirst;
+			last = aLast;
+		}
+	}
+
+	private final List<TimeSegment> segments = new ArrayList<TimeSegment>();
+
+	private final long[] prefixCounts;
+
+	private final long[] prefixDigests;
+
+	private int roundTrips = 0;
+
+	public DigestVerifier(Iterable<TimeSegment> plan)
+	{
+		for (TimeSegment ts : plan)
+		{
+			segments.add(ts);
+		}
+
+		prefixCounts = new long[segments.size()+1];
+		prefixDigests = new long[segments.size()+1];
+		for (int i = 0; i < segments.size(); ++i)
+		{
+			prefixCounts[i+1] = prefixCounts[i] + segments.get(i).getElCount();
+			prefixDigests[i+1] = prefixDigests[i] + segments.get(i).getElDigest();
+		}
+	}
+
+	public int getRoundTrips()
+	{
+		return roundTrips;
+	}
+
+	/**
+	 * Returns Ok segments whose ES content changed since they were verified.
+	 */
+	public List<TimeSegment> audit(EventIndexOperations elasticOps) throws IOException
+	{
+		List<TimeSegment> returnValue = new ArrayList<TimeSegment>();
+
+		List<Node> pending = new ArrayList<Node>();
+		int i = 0;
+		while (i < segments.size())
+		{
+			if (!isAudited(segments.get(i)))
+			{
+				++i;
+				continue;
+			}
+
+			int j = i;
+			while (j+1 < segments.size() && isAudited(segments.get(j+1)) && segments.get(j).getToMillis() == segments.get(j+1).getFromMillis())
+			{
+				++j;
+			}
+			pending.add(new Node(i, j));
+			i = j+1;
+		}
+		query(pending, elasticOps);
+
+		while (!pending.isEmpty())
+		{
+			List<Node> lefts = new ArrayList<Node>();
+			List<Node[]> families = new ArrayList<Node[]>(); // parent, left, right
+			for (Node node : pending)
+			{
+				if (node.actual.equals(expected(node)))
+				{
+					continue;
+				}
+
+				if (node.first == node.last)
+				{
+					returnValue.add(segments.get(node.first));
+					continue;
+				}
+
+				int middle = (node.first + node.last)/2;
+				Node left = new Node(node.first, middle);
+				lefts.add(left);
+				families.add(new Node[] { node, left, new Node(middle+1, node.last) });
+			}
+
+			query(lefts, elasticOps);
+
+			pending = new ArrayList<Node>();
+			for (Node[] family : families)
+			{
+				family[2].actual = family[0].actual.subtract(family[1].actual);
+				pending.add(family[1]);
+				pending.add(family[2]);
+			}
+		}
+
+		return returnValue;
+	}
+
+	private boolean isAudited(TimeSegment ts)
+	{
+		return ts.getStatus() == TimeSegmentStatus.Ok && ts.isDigestKnown();
+	}
+
+	private SegmentDigest expected(Node node)
+	{
+		return new SegmentDigest((int)(prefixCounts[node.last+1] - prefixCounts[node.first]), prefixDigests[node.last+1] - prefixDigests[node.first]);
+	}
+
+	private void query(List<Node> nodes, EventIndexOperations elasticOps) throws IOException
+	{
+		if (nodes.isEmpty())
+		{
+			return;
+		}
+
+		List<TimeSegment> ranges = new ArrayList<TimeSegment>(nodes.size());
+		for (Node node : nodes)
+		{
+			ranges.add(new TimeSegment(segments.get(node.first).getFromMillis(), segments.get(node.last).getToMillis()));
+		}
+
+		List<SegmentDigest> digests = elasticOps.digestEsData(ranges);
+		for (int i = 0; i < nodes.size(); ++i)
+		{
+			nodes.get(i).actual = digests.get(i);
+		}
+		++roundTrips;
+	}
+}
@@ -1,7 +1,16 @@
 package org.logstashplugins;
 
-import java.io.Closeable;
 import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import org.apache.http.HttpHost;
 import org.apache.http.auth.AuthScope;
@@ -9,16 +18,30 @@ import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.util.EntityUtils;
 import org.apache.logging.log4j.Logger;
 import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Request;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestClient;
 import org.elasticsearch.client.RestClientBuilder.HttpClientConfigCallback;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.client.core.CountRequest;
+import org.elasticsearch.client.core.CountResponse;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.index.reindex.BulkByScrollResponse;
 import org.elasticsearch.index.reindex.DeleteByQueryRequest;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
+import org.elasticsearch.search.aggregations.bucket.histogram.Histogram;
+import org.elasticsearch.search.aggregations.bucket.range.DateRangeAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.range.Range;
+import org.elasticsearch.search.aggregations.metrics.ScriptedMetric;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
 
 /**
@@ -26,15 +49,35 @@ import org.elasticsearch.search.builder.SearchSourceBuilder;
  * 
  * @author Peter
  */
-public final class ElasticSearchOperations implements Closeable
+public final class ElasticSearchOperations implements EventIndexOperations
 {
+	private static final int MAX_RANGES_PER_REQUEST = 1000;
+	
+	private static final int HISTOGRAM_BUCKETS = 1000; // resolution of histogram used to split oversized segments
+	
+	// same hash as SegmentDigest.hashUid, UID is read from the configured keyword field
+	private static final String DIGEST_MAP_SCRIPT = "def v = doc[params.field]; if (v.size() > 0) { UUID u = UUID.fromString(v.value); "
+												  + "state.d += u.getMostSignificantBits() * "+SegmentDigest.UID_HASH_MULTIPLIER+"L + u.getLeastSignificantBits() }";
+	
 	private String indexPattern;
+	private String digestField;
+	private TimeBasedIndices timeBasedIndices; // null = retention by delete-by-query over the whole pattern every round
+	private long retentionPeriodMillis;
+	private long lastRetentionMillis;
+	private boolean retentionStarted = false;
+	private Clock clock; // retention period is timed by the plugin clock (virtual in simulations)
+	private SyncMetrics metrics;
 	RestHighLevelClient elasticClient;
 	private Logger log;
 
-	public ElasticSearchOperations(String aHost, int aPort, String aUser, String aPass, String aIndexPattern, Logger aLog)
+	public ElasticSearchOperations(String aHost, int aPort, String aUser, String aPass, String aIndexPattern, String aDigestField, String aIndexDateFormat, Duration aRetentionPeriod, Clock aClock, SyncMetrics aMetrics, Logger aLog)
 	{
 		this.indexPattern = aIndexPattern;
+		this.digestField = aDigestField;
+		this.timeBasedIndices = (aIndexDateFormat == null || aIndexDateFormat.isEmpty())?null:new TimeBasedIndices(aIndexDateFormat);
+		this.retentionPeriodMillis = aRetentionPeriod.toMillis();
+		this.clock = aClock;
+		this.metrics = aMetrics;
 		this.log = aLog;
 		
 		//https://www.elastic.co/guide/en/elasticsearch/client/java-rest/current/_encrypted_communication.html
@@ -63,19 +106,21 @@ public final class ElasticSearchOperations implements Closeable
 	    }));
 	}
 	
+	@Override
 	public int countEsData(TimeSegment period) throws Exception
 	{
-		CountRequest countRequest = new CountRequest(indexPattern);
-		SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder(); 
-		searchSourceBuilder.query(QueryBuilders.rangeQuery("@timestamp").gte(period.getFromTs()).lt(period.getToTs())); 
-		countRequest.source(searchSourceBuilder);
+		CountRequest countRequest = createCountRequest(period);
+		long start = System.nanoTime();
 	
 		try
 		{
-			return (int)elasticClient.count(countRequest, RequestOptions.DEFAULT).getCount();
+			int returnValue = (int)elasticClient.count(countRequest, RequestOptions.DEFAULT).getCount();
+			metrics.elasticRequest("count", start, false);
+			return returnValue;
 		} 
 		catch (ElasticsearchStatusException e)
 		{
+			metrics.elasticRequest("count", start, e.status().getStatus() != 404);
 			if (e.status().getStatus() == 404)
 			{
 				return 0;
@@ -87,6 +132,244 @@ public final class ElasticSearchOperations implements Closeable
 		}
 	}
 
+	/**
+	 * Counts events of many segments at once, using a single date_range aggregation per batch of segments (instead of one _count per segment).
+	 * Segments are expected in plan order, returned map contains count for every requested segment.
+	 */
+	@Override
+	public Map<TimeSegment, Integer> countEsData(List<TimeSegment> periods) throws IOException
+	{
+		Map<TimeSegment, Integer> returnValue = new HashMap<TimeSegment, Integer>();
+		for (int start = 0; start < periods.size(); start += MAX_RANGES_PER_REQUEST)
+		{
+			List<TimeSegment> batch = periods.subList(start, Math.min(periods.size(), start + MAX_RANGES_PER_REQUEST));
+			DateRangeAggregationBuilder ranges = AggregationBuilders.dateRange("segments").field("@timestamp");
+			for (int i = 0; i < batch.size(); ++i)
+			{
+				ranges.addRange(Integer.toString(i), batch.get(i).getFromMillis(), batch.get(i).getToMillis()); // from inclusive, to exclusive
+				returnValue.put(batch.get(i), 0);
+			}
+			
+			SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder()
+					.size(0)
+					.trackTotalHits(false)
+					.query(QueryBuilders.rangeQuery("@timestamp").gte(batch.get(0).getFromMillis()).lt(batch.get(batch.size()-1).getToMillis()).format("epoch_millis"))
+					.aggregation(ranges);
+			
+			try
+			{
+				SearchResponse response = search("count_batch", searchSourceBuilder);
+				if (response.getAggregations() != null)
+				{
+					Range segments = response.getAggregations().get("segments");
+					for (Range.Bucket bucket : segments.getBuckets())
+					{
+						returnValue.put(batch.get(Integer.parseInt(bucket.getKeyAsString())), (int)bucket.getDocCount());
+					}
+				}
+			}
+			catch (ElasticsearchStatusException e)
+			{
+				if (e.status().getStatus() != 404)
+				{
+					throw e;
+				}
+			}
+		}
+		return returnValue;
+	}
+	
+	/**
+	 * Computes digests (count and sum of UID hashes, see SegmentDigest) of many ranges at once, using a date_range aggregation
+	 * with a scripted metric per range. Returned list is in the order of requested ranges.
+	 */
+	@Override
+	public List<SegmentDigest> digestEsData(List<TimeSegment> periods) throws IOException
+	{
+		List<SegmentDigest> returnValue = new ArrayList<SegmentDigest>(periods.size());
+		for (int start = 0; start < periods.size(); start += MAX_RANGES_PER_REQUEST)
+		{
+			List<TimeSegment> batch = periods.subList(start, Math.min(periods.size(), start + MAX_RANGES_PER_REQUEST));
+			SegmentDigest[] digests = new SegmentDigest[batch.size()];
+			DateRangeAggregationBuilder ranges = AggregationBuilders.dateRange("segments").field("@timestamp");
+			long from = Long.MAX_VALUE, to = Long.MIN_VALUE;
+			for (int i = 0; i < batch.size(); ++i)
+			{
+				ranges.addRange(Integer.toString(i), batch.get(i).getFromMillis(), batch.get(i).getToMillis());
+				from = Math.min(from, batch.get(i).getFromMillis());
+				to = Math.max(to, batch.get(i).getToMillis());
+				digests[i] = new SegmentDigest(0, 0L);
+			}
+			ranges.subAggregation(AggregationBuilders.scriptedMetric("digest")
+													 .params(Collections.singletonMap("field", digestField))
+													 .initScript(new Script("state.d = 0L"))
+													 .mapScript(new Script(DIGEST_MAP_SCRIPT))
+													 .combineScript(new Script("return state.d"))
+													 .reduceScript(new Script("long d = 0L; for (s in states) { if (s != null) { d += s } } return d")));
+			
+			SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder()
+					.size(0)
+					.trackTotalHits(false)
+					.query(QueryBuilders.rangeQuery("@timestamp").gte(from).lt(to).format("epoch_millis"))
+					.aggregation(ranges);
+			
+			try
+			{
+				SearchResponse response = search("digest_batch", searchSourceBuilder);
+				if (response.getAggregations() != null)
+				{
+					Range segments = response.getAggregations().get("segments");
+					for (Range.Bucket bucket : segments.getBuckets())
+					{
+						ScriptedMetric digest = bucket.getAggregations().get("digest");
+						long digestValue = (digest.aggregation() instanceof Number)?((Number)digest.aggregation()).longValue():0L;
+						digests[Integer.parseInt(bucket.getKeyAsString())] = new SegmentDigest((int)bucket.getDocCount(), digestValue);
+					}
+				}
+			}
+			catch (ElasticsearchStatusException e)
+			{
+				if (e.status().getStatus() != 404)
+				{
+					throw e;
+				}
+			}
+			returnValue.addAll(Arrays.asList(digests));
+		}
+		return returnValue;
+	}
+	
+	/**
+	 * Proposes split points of an oversized segment, so that each part has roughly targetCount events or less.
+	 * Based on a date_histogram of the segment, returns empty array if events cannot be split by the histogram resolution.
+	 */
+	@Override
+	public long[] histogramSplitPoints(TimeSegment period, int targetCount) throws IOException
+	{
+		long from = period.getFromMillis();
+		long to = period.getToMillis();
+		long interval = Math.max(1L, (to - from + HISTOGRAM_BUCKETS - 1) / HISTOGRAM_BUCKETS);
+		
+		SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder()
+				.size(0)
+				.trackTotalHits(false)
+				.query(QueryBuilders.rangeQuery("@timestamp").gte(from).lt(to).format("epoch_millis"))
+				.aggregation(AggregationBuilders.dateHistogram("histogram")
+												.field("@timestamp")
+												.fixedInterval(new DateHistogramInterval(interval+"ms"))
+												.offset(Math.floorMod(from, interval)) // buckets aligned to segment start
+												.minDocCount(1));
+		
+		List<Long> returnValue = new ArrayList<Long>();
+		try
+		{
+			SearchResponse response = search("histogram", searchSourceBuilder);
+			if (response.getAggregations() != null)
+			{
+				Histogram histogram = response.getAggregations().get("histogram");
+				long count = 0;
+				for (Histogram.Bucket bucket : histogram.getBuckets())
+				{
+					long bucketStart = ((ZonedDateTime)bucket.getKey()).toInstant().toEpochMilli();
+					if (count > 0 && count + bucket.getDocCount() > targetCount && bucketStart > from && bucketStart < to)
+					{
+						returnValue.add(bucketStart);
+						count = 0;
+					}
+					count += bucket.getDocCount();
+				}
+			}
+		}
+		catch (ElasticsearchStatusException e)
+		{
+			if (e.status().getStatus() != 404)
+			{
+				throw e;
+			}
+		}
+		
+		long[] points = new long[returnValue.size()];
+		for (int i = 0; i < points.length; ++i)
+		{
+			points[i] = returnValue.get(i);
+		}
+		return points;
+	}
+	
+	@Override
+	public SegmentDigest digestEsData(TimeSegment period) throws IOException
+	{
+		return digestEsData(Collections.singletonList(period)).get(0);
+	}
+	
+	/**
+	 * Non-blocking variant of countEsData, completes on the client I/O thread.
+	 */
+	@Override
+	public CompletableFuture<Integer> countEsDataAsync(TimeSegment period)
+	{
+		CompletableFuture<Integer> returnValue = new CompletableFuture<Integer>();
+		long start = System.nanoTime();
+		elasticClient.countAsync(createCountRequest(period), RequestOptions.DEFAULT, new ActionListener<CountResponse>()
+		{
+			@Override
+			public void onResponse(CountResponse response)
+			{
+				metrics.elasticRequest("count", start, false);
+				returnValue.complete((int)response.getCount());
+			}
+
+			@Override
+			public void onFailure(Exception e)
+			{
+				boolean notFound = (e instanceof ElasticsearchStatusException && ((ElasticsearchStatusException)e).status().getStatus() == 404);
+				metrics.elasticRequest("count", start, !notFound);
+				if (notFound)
+				{
+					returnValue.complete(0);
+				}
+				else
+				{
+					returnValue.completeExceptionally(e);
+				}
+			}
+		});
+		return returnValue;
+	}
+	
+	/**
+	 * Executes search on the configured index pattern and records its latency, missing index (404) is not recorded as a failure (same as for counts).
+	 */
+	private SearchResponse search(String type, SearchSourceBuilder searchSourceBuilder) throws IOException
+	{
+		long start = System.nanoTime();
+		boolean failed = true;
+		try
+		{
+			SearchResponse returnValue = elasticClient.search(new SearchRequest(indexPattern).source(searchSourceBuilder), RequestOptions.DEFAULT);
+			failed = false;
+			return returnValue;
+		}
+		catch (ElasticsearchStatusException e)
+		{
+			failed = (e.status().getStatus() != 404);
+			throw e;
+		}
+		finally
+		{
+			metrics.elasticRequest(type, start, failed);
+		}
+	}
+	
+	private CountRequest createCountRequest(TimeSegment period)
+	{
+		CountRequest countRequest = new CountRequest(indexPattern);
+		SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder(); 
+		searchSourceBuilder.query(QueryBuilders.rangeQuery("@timestamp").gte(period.getFromTs()).lt(period.getToTs())); 
+		countRequest.source(searchSourceBuilder);
+		return countRequest;
+	}
+
 	@Override
 	public void close() throws IOException
 	{
@@ -104,13 +387,114 @@ public final class ElasticSearchOperations implements Closeable
 		}		
 	}
 
+	/**
+	 * With time-based indices, indices entirely older than the plan are dropped and delete-by-query runs only on the index
+	 * holding the plan boundary (and on indices whose names do not follow the date format), at most once per retention period.
+	 */
+	@Override
 	public long deleteOlder(TimeSegment planBoundary)
+	{
+		if (timeBasedIndices == null)
+		{
+			return deleteByQuery(planBoundary, indexPattern);
+		}
+		
+		long now = clock.millis();
+		if (retentionStarted && now - lastRetentionMillis < retentionPeriodMillis)
+		{
+			return 0;
+		}
+		
+		List<String> expired = new ArrayList<String>();
+		List<String> boundary = new ArrayList<String>();
+		try
+		{
+			for (String index : listIndices())
+			{
+				long[] period = timeBasedIndices.period(index);
+				if (period != null && period[1] <= planBoundary.getFromMillis())
+				{
+					expired.add(index);
+				}
+				else if (period == null || period[0] < planBoundary.getFromMillis())
+				{
+					boundary.add(index);
+				}
+			}
+			
+			long returnValue = 0;
+			if (!expired.isEmpty())
+			{
+				returnValue += deleteIndices(expired);
+			}
+			if (!boundary.isEmpty())
+			{
+				returnValue += deleteByQuery(planBoundary, String.join(",", boundary));
+			}
+			retentionStarted = true;
+			lastRetentionMillis = now;
+			return returnValue;
+		}
+		catch (IOException e)
+		{
+			log.warn("Retention of time-based indices failed, it is going to be retried by the next round.", e);
+			return 0;
+		}
+	}
+	
+	/**
+	 * Names of indices matching the index pattern.
+	 */
+	private List<String> listIndices() throws IOException
+	{
+		long start = System.nanoTime();
+		boolean failed = true;
+		try
+		{
+			String names = EntityUtils.toString(elasticClient.getLowLevelClient().performRequest(new Request("GET", "/_cat/indices/"+indexPattern+"?h=index")).getEntity());
+			List<String> returnValue = new ArrayList<String>();
+			for (String name : names.split("\\s+"))
+			{
+				if (!name.isEmpty())
+				{
+					returnValue.add(name);
+				}
+			}
+			failed = false;
+			return returnValue;
+		}
+		finally
+		{
+			metrics.elasticRequest("list_indices", start, failed);
+		}
+	}
+	
+	/**
+	 * Drops whole indices, returns number of events they held.
+	 */
+	private long deleteIndices(List<String> indices) throws IOException
+	{
+		String[] names = indices.toArray(new String[indices.size()]);
+		long start = System.nanoTime();
+		long returnValue = elasticClient.count(new CountRequest(names), RequestOptions.DEFAULT).getCount();
+		metrics.elasticRequest("count", start, false);
+		
+		start = System.nanoTime();
+		elasticClient.indices().delete(new DeleteIndexRequest(names), RequestOptions.DEFAULT);
+		metrics.elasticRequest("delete_index", start, false);
+		log.info("Deleted indices "+indices+" older than the plan.");
+		return returnValue;
+	}
+	
+	private long deleteByQuery(TimeSegment planBoundary, String indices)
 	{
 		try
 		{
-			DeleteByQueryRequest deleteByQueryRequest = new DeleteByQueryRequest(indexPattern);
+			DeleteByQueryRequest deleteByQueryRequest = new DeleteByQueryRequest(indices);
 			deleteByQueryRequest.setQuery(QueryBuilders.rangeQuery("@timestamp").lt(planBoundary.getFromTs()));
+			long start = System.nanoTime();
 			BulkByScrollResponse response = elasticClient.deleteByQuery(deleteByQueryRequest , RequestOptions.DEFAULT);
+			metrics.elasticRequest("delete", start, false);
 			return response.getDeleted();
 		} 
 		catch (ElasticsearchStatusException e)
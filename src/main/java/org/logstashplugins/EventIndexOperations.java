@@ -0,0 +1,39 @@
+package org.logstashplugins;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Target index operations used by the sync loop (implemented by ElasticSearchOperations).
+ */
+public interface EventIndexOperations extends Closeable
+{
+	int countEsData(TimeSegment period) throws Exception;
+
+	/**
+	 * Counts events of many segments at once, returned map contains count for every requested segment.
+	 */
+	Map<TimeSegment, Integer> countEsData(List<TimeSegment> periods) throws IOException;
+
+	CompletableFuture<Integer> countEsDataAsync(TimeSegment period);
+
+	/**
+	 * Digests of many ranges at once, returned list is in the order of requested ranges.
+	 */
+	List<SegmentDigest> digestEsData(List<TimeSegment> periods) throws IOException;
+
+	SegmentDigest digestEsData(TimeSegment period) throws IOException;
+
+	/**
+	 * Proposes split points of an oversized segment, so that each part has roughly targetCount events or less.
+	 */
+	long[] histogramSplitPoints(TimeSegment period, int targetCount) throws IOException;
+
+	/**
+	 * Deletes events older than the plan, returns number of deleted events.
+	 */
+	long deleteOlder(TimeSegment planBoundary);
+}
@@ -0,0 +1,127 @@
+package org.logstashplugins;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+
+import com.datastax.oss.driver.api.core.cql.Row;
+
+/**
+ * Builds events from event store rows (uid, created, tags, data, embed) with as few allocations per row as possible.
+ *
+ * Tag lists are shared by all events of the same tag combination (keyed by raw bytes of the tags column) and 'created'
+ * is formatted from raw epoch millis with cached date part, producing the same text as Instant.toString.
+ * Instance is not thread safe, it is meant to be used by a single query.
+ */
+final class EventMapper
+{
+	private static final long MILLIS_PER_DAY = 86400000L;
+
+	private static final int MAX_SHARED_TAG_LISTS = 10000; // tag combinations are partition keys, there should be only few of them
+
+	private final ConcurrentMap<ByteBuffer, List<String>> sharedTags;
+
+	private final char[] buffer = new char[24]; // yyyy-MM-ddTHH:mm:ss.SSSZ
+
+	private long cachedDay = Long.MIN_VALUE;
+
+	EventMapper(ConcurrentMap<ByteBuffer, List<String>> aSharedTags)
+	{
+		this.sharedTags = aSharedTags;
+	}
+
+	Map<String, Object> map(long uidMsb, long uidLsb, Row row)
+	{
+		Map<String, Object> returnValue = new HashMap<String, Object>(8); // 5 entries without rehash
+		returnValue.put("uid", new UUID(uidMsb, uidLsb).toString());
+		returnValue.put("created", formatCreated(row));
+		returnValue.put("tags", tags(row));
+		returnValue.put("data", row.getString(3));
+		returnValue.put("embed", row.getString(4));
+		return returnValue;
+	}
+
+	private List<String> tags(Row row)
+	{
+		ByteBuffer raw = row.getBytesUnsafe(2);
+		List<String> returnValue = (raw != null)?sharedTags.get(raw):null;
+		if (returnValue == null)
+		{
+			returnValue = Collections.unmodifiableList(new ArrayList<String>(row.getSet(2, String.class)));
+			if (raw != null)
+			{
+				if (sharedTags.size() >= MAX_SHARED_TAG_LISTS)
+				{
+					sharedTags.clear();
+				}
+				ByteBuffer key = ByteBuffer.allocate(raw.remaining());
+				key.put(raw.duplicate()).flip();
+				sharedTags.putIfAbsent(key, returnValue);
+			}
+		}
+		return returnValue;
+	}
+
+	private String formatCreated(Row row)
+	{
+		ByteBuffer raw = row.getBytesUnsafe(1);
+		return (raw != null)?format(raw.getLong(raw.position())):null;
+	}
+
+	/**
+	 * Same result as Instant.ofEpochMilli(millis).toString().
+	 */
+	String format(long millis)
+	{
+		long day = Math.floorDiv(millis, MILLIS_PER_DAY);
+		if (day != cachedDay)
+		{
+			LocalDate date = LocalDate.ofEpochDay(day);
+			if (date.getYear() < 0 || date.getYear() > 9999)
+			{
+				return Instant.ofEpochMilli(millis).toString();
+			}
+			writeDigits(0, date.getYear(), 4);
+			buffer[4] = '-';
+			writeDigits(5, date.getMonthValue(), 2);
+			buffer[7] = '-';
+			writeDigits(8, date.getDayOfMonth(), 2);
+			buffer[10] = 'T';
+			buffer[13] = ':';
+			buffer[16] = ':';
+			cachedDay = day;
+		}
+
+		int millisOfDay = (int)(millis - day*MILLIS_PER_DAY);
+		writeDigits(11, millisOfDay/3600000, 2);
+		writeDigits(14, (millisOfDay/60000)%60, 2);
+		writeDigits(17, (millisOfDay/1000)%60, 2);
+
+		int fraction = millisOfDay%1000;
+		if (fraction == 0)
+		{
+			buffer[19] = 'Z';
+			return new String(buffer, 0, 20);
+		}
+		buffer[19] = '.';
+		writeDigits(20, fraction, 3);
+		buffer[23] = 'Z';
+		return new String(buffer, 0, 24);
+	}
+
+	private void writeDigits(int offset, int value, int digits)
+	{
+		for (int i = offset+digits-1; i >= offset; --i)
+		{
+			buffer[i] = (char)('0' + value%10);
+			value /= 10;
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package org.logstashplugins;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Source event store operations used by the sync loop (implemented by CassandraSearchOperations).
+ * Counts are numbers of distinct events, capped at the sync limit.
+ *
+ * Loads and counts read at the strong consistency level, except routine counts (re-verification of segments found Ok before),
+ * which read at the cheaper routine level and could miss the most recent writes. Counts could be also approximate (see isCountApproximate).
+ * A cheap count which would lead to a load is therefore confirmed by digestCsData at the strong level first.
+ *
+ * Async operations complete on other threads, they should get standalone ranges (see TimeSegment.range) instead of plan segments.
+ */
+public interface EventStoreOperations extends Closeable
+{
+	/**
+	 * Pushes events of the period to the consumer, returns number of events pushed.
+	 */
+	int loadCsData(TimeSegment period, Consumer<Map<String, Object>> consumer);
+
+	/**
+	 * Same as loadCsData, but returns number of rows read including duplicates. It reaches the fetch limit if the load was cut off
+	 * by the query limit, even if fewer distinct events were pushed.
+	 */
+	int loadCsDataRows(TimeSegment period, Consumer<Map<String, Object>> consumer);
+
+	CompletableFuture<Integer> loadCsDataAsync(TimeSegment period, Consumer<Map<String, Object>> consumer, Executor executor);
+
+	int countCsData(TimeSegment period);
+
+	/**
+	 * Non-blocking count, approximate (fast) if the caller found the plan segment of the period approximate (see isCountApproximate).
+	 */
+	CompletableFuture<Integer> countCsDataAsync(TimeSegment period, boolean routine, boolean approximate, Executor executor);
+
+	SegmentDigest digestCsData(TimeSegment period);
+
+	CompletableFuture<SegmentDigest> digestCsDataAsync(TimeSegment period, boolean routine, Executor executor);
+
+	/**
+	 * Full scan of events created within the period split into independent parts (at least minParts of them), every part pushes
+	 * events of included tag combinations to the consumer and returns their number. Parts could run concurrently, events are deduplicated
+	 * by UID within every part (same as within a load), a partition is never split between parts.
+	 */
+	List<Callable<Integer>> scanCsData(TimeSegment period, int minParts, Consumer<Map<String, Object>> consumer);
+
+	/**
+	 * Version of included tag combinations the counts are filtered by, counts of different versions are not comparable.
+	 */
+	long getTagVersion();
+
+	/**
+	 * True if the count of the period is not deduplicated by UID (fast count mode), it could exceed the number of distinct events.
+	 */
+	boolean isCountApproximate(TimeSegment period);
+
+	/**
+	 * Returns the future derived from the source, cancelling it cancels the source as well (e.g. stops paging of an abandoned count).
+	 */
+	static <T> CompletableFuture<T> cancelling(CompletableFuture<?> source, CompletableFuture<T> derived)
+	{
+		derived.whenComplete((result, error) ->
+		{
+			if (derived.isCancelled())
+			{
+				source.cancel(false);
+			}
+		});
+		return derived;
+	}
+}
@@ -0,0 +1,288 @@
+package org.logstashplugins;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.Row;
+
+/**
+ * K-way merge of per-partition query results ordered by 'created' (column 1).
+ *
+ * Queries for all partitions are already running when the reader is created, it only waits for their pages. Next page of a partition
+ * is requested as soon as its current page is being consumed, so pages of all partitions are fetched concurrently with the merge.
+ * The merge either blocks the calling thread on pages (forEach) or resumes on an executor once the page arrives (forEachAsync).
+ */
+public final class PartitionMergeReader
+{
+	private final List<? extends CompletionStage<AsyncResultSet>> partitions;
+
+	private static final class Cursor implements Comparable<Cursor>
+	{
+		private Iterator<Row> rows;
+		private CompletableFuture<AsyncResultSet> nextPage;
+		private Row current;
+		private long created;
+
+		Cursor(AsyncResultSet aPage)
+		{
+			setPage(aPage);
+		}
+
+		private void setPage(AsyncResultSet aPage)
+		{
+			rows = aPage.currentPage().iterator();
+			nextPage = aPage.hasMorePages()?aPage.fetchNextPage().toCompletableFuture():null; // prefetch while this page is merged
+		}
+
+		/**
+		 * Moves to the next row, returns false if the partition is exhausted.
+		 */
+		boolean advance() throws InterruptedException, ExecutionException
+		{
+			while (!rows.hasNext())
+			{
+				if (nextPage == null)
+				{
+					current = null;
+					return false;
+				}
+				setPage(nextPage.get());
+			}
+
+			current = rows.next();
+			created = current.getInstant(1).toEpochMilli();
+			return true;
+		}
+
+		/**
+		 * Non-blocking advance, returns the page to wait for or null if moved to the next row (current is null if the partition is exhausted).
+		 */
+		CompletableFuture<AsyncResultSet> tryAdvance() throws InterruptedException, ExecutionException
+		{
+			while (!rows.hasNext())
+			{
+				if (nextPage == null)
+				{
+					current = null;
+					return null;
+				}
+				if (!nextPage.isDone())
+				{
+					return nextPage;
+				}
+				setPage(nextPage.get());
+			}
+
+			current = rows.next();
+			created = current.getInstant(1).toEpochMilli();
+			return null;
+		}
+
+		/**
+		 * Same as advance, but does not read the ordering column.
+		 */
+		boolean advanceUnordered() throws InterruptedException, ExecutionException
+		{
+			while (!rows.hasNext())
+			{
+				if (nextPage == null)
+				{
+					current = null;
+					return false;
+				}
+				setPage(nextPage.get());
+			}
+
+			current = rows.next();
+			return true;
+		}
+
+		@Override
+		public int compareTo(Cursor other)
+		{
+			return Long.compare(created, other.created);
+		}
+	}
+
+	/**
+	 * State of a non-blocking merge, steps run one at a time on the executor.
+	 */
+	private final class AsyncMerge
+	{
+		final CompletableFuture<Void> done = new CompletableFuture<Void>();
+		private final Consumer<Row> handler;
+		private final int limit;
+		private final Executor executor;
+		private final PriorityQueue<Cursor> heads = new PriorityQueue<Cursor>(Math.max(1, partitions.size()));
+		private int started = 0; // partitions with a cursor
+		private Cursor advancing; // cursor to be moved to its next row
+		private int taken = 0;
+
+		AsyncMerge(Consumer<Row> aHandler, int aLimit, Executor aExecutor)
+		{
+			handler = aHandler;
+			limit = aLimit;
+			executor = aExecutor;
+		}
+
+		/**
+		 * Merges rows until a page is not available yet, then resumes once it arrives. Stops when done (also when cancelled).
+		 */
+		void resume()
+		{
+			try
+			{
+				while (!done.isDone())
+				{
+					CompletableFuture<AsyncResultSet> page = step();
+					if (page != null)
+					{
+						page.whenCompleteAsync((rs, error) -> resume(), executor);
+						return;
+					}
+				}
+			}
+			catch (ExecutionException e)
+			{
+				done.completeExceptionally(e.getCause());
+			}
+			catch (Throwable e)
+			{
+				done.completeExceptionally(e);
+			}
+		}
+
+		/**
+		 * Makes one step of the merge, returns the page to wait for (null if the step was made).
+		 */
+		private CompletableFuture<AsyncResultSet> step() throws InterruptedException, ExecutionException
+		{
+			if (advancing != null)
+			{
+				CompletableFuture<AsyncResultSet> page = advancing.tryAdvance();
+				if (page == null)
+				{
+					if (advancing.current != null)
+					{
+						heads.add(advancing);
+					}
+					advancing = null;
+				}
+				return page;
+			}
+
+			if (started < partitions.size())
+			{
+				CompletableFuture<AsyncResultSet> first = partitions.get(started).toCompletableFuture();
+				if (!first.isDone())
+				{
+					return first;
+				}
+				advancing = new Cursor(first.get());
+				++started;
+				return null;
+			}
+
+			if (taken >= limit || heads.isEmpty())
+			{
+				done.complete(null);
+				return null;
+			}
+			advancing = heads.poll();
+			handler.accept(advancing.current);
+			++taken;
+			return null;
+		}
+	}
+
+	public PartitionMergeReader(List<? extends CompletionStage<AsyncResultSet>> aPartitions)
+	{
+		this.partitions = aPartitions;
+	}
+
+	/**
+	 * Non-blocking variant of forEach, rows are merged and fed to the handler on the executor. No thread waits for pages meanwhile.
+	 * Cancelling the returned future stops the merge (no more pages are requested).
+	 */
+	public CompletableFuture<Void> forEachAsync(Consumer<Row> handler, int aLimit, Executor executor)
+	{
+		AsyncMerge merge = new AsyncMerge(handler, aLimit, executor);
+		executor.execute(merge::resume);
+		return merge.done;
+	}
+
+	/**
+	 * Feeds up to aLimit rows of all partitions to the handler in the order of 'created'.
+	 */
+	public void forEach(Consumer<Row> handler, int aLimit)
+	{
+		try
+		{
+			PriorityQueue<Cursor> heads = new PriorityQueue<Cursor>(Math.max(1, partitions.size()));
+			for (CompletionStage<AsyncResultSet> partition : partitions)
+			{
+				Cursor cursor = new Cursor(partition.toCompletableFuture().get());
+				if (cursor.advance())
+				{
+					heads.add(cursor);
+				}
+			}
+
+			int taken = 0;
+			while (taken < aLimit && !heads.isEmpty())
+			{
+				Cursor cursor = heads.poll();
+				handler.accept(cursor.current);
+				++taken;
+				if (cursor.advance())
+				{
+					heads.add(cursor);
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new CompletionException(e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new CompletionException(e.getCause());
+		}
+	}
+
+	/**
+	 * Feeds all rows of all partitions to the handler, partition by partition (no ordering).
+	 */
+	public void forEachUnordered(Consumer<Row> handler)
+	{
+		try
+		{
+			for (CompletionStage<AsyncResultSet> partition : partitions)
+			{
+				Cursor cursor = new Cursor(partition.toCompletableFuture().get());
+				while (cursor.advanceUnordered())
+				{
+					handler.accept(cursor.current);
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new CompletionException(e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new CompletionException(e.getCause());
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package org.logstashplugins;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Clock;
+
+/**
+ * Compact binary checkpoint of DataSyncPlan (segment boundaries, status, counts, digests and verification history), allows a restarted plugin
+ * to continue from the last known state instead of re-verifying whole history.
+ *
+ * File is always rewritten to a temporary file and atomically moved over the previous checkpoint, so a crash while saving
+ * leaves the previous checkpoint intact.
+ */
+public final class PlanCheckpoint
+{
+	private static final int MAGIC = 0x43535350; // "CSSP"
+	
+	private static final int VERSION = 2; // 2 added verification time and mismatch history, version 1 is still readable
+	
+	private static final TimeSegmentStatus[] STATUSES = TimeSegmentStatus.values();
+	
+	private PlanCheckpoint()
+	{
+	}
+	
+	public static void save(DataSyncPlan plan, Path file) throws IOException
+	{
+		Path tempFile = file.resolveSibling(file.getFileName()+".tmp");
+		SegmentTable t = plan.getTable();
+		
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile))))
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(t.size);
+			for (int i = 0; i < t.size; ++i)
+			{
+				out.writeLong(t.from[i]);
+				out.writeLong(t.to[i]);
+				out.writeByte(t.status[i]);
+				out.writeInt(t.elCount[i]);
+				out.writeInt(t.csCount[i]);
+				out.writeLong(t.elDigest[i]);
+				out.writeBoolean(t.digestKnown[i]);
+				out.writeLong(t.verifiedAt[i]);
+				out.writeByte(t.mismatches[i]);
+			}
+		}
+		
+		Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * Loads plan from the checkpoint, throws IOException if file is missing, corrupted or segments are not adjacent.
+	 * Restored plan should be clipped by ShiftToNow before use.
+	 */
+	public static DataSyncPlan load(Path file, int aHistoryLengthDays, int aMaximumSegmentSize, Clock aClock) throws IOException
+	{
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file))))
+		{
+			int version = (in.readInt() == MAGIC)?in.readInt():-1;
+			if (version < 1 || version > VERSION)
+			{
+				throw new IOException("Unsupported checkpoint format: "+file);
+			}
+			
+			int size = in.readInt();
+			if (size <= 0)
+			{
+				throw new IOException("Empty checkpoint: "+file);
+			}
+			
+			SegmentTable t = new SegmentTable(size);
+			for (int i = 0; i < size; ++i)
+			{
+				long from = in.readLong();
+				long to = in.readLong();
+				byte status = in.readByte();
+				
+				if (from >= to || status < 0 || status >= STATUSES.length || (i > 0 && t.to[i-1] != from))
+				{
+					throw new IOException("Corrupted checkpoint, invalid segment #"+i+": "+file);
+				}
+				
+				t.add(from, to);
+				t.status[i] = status;
+				t.elCount[i] = in.readInt();
+				t.csCount[i] = in.readInt();
+				t.elDigest[i] = in.readLong();
+				t.digestKnown[i] = in.readBoolean();
+				if (version >= 2)
+				{
+					t.verifiedAt[i] = in.readLong();
+					t.mismatches[i] = in.readByte();
+				}
+			}
+			
+			return new DataSyncPlan(aHistoryLengthDays, aMaximumSegmentSize, t, aClock);
+		}
+	}
+}
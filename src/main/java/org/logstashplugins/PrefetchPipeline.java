@@ -0,0 +1,292 @@
+package org.logstashplugins;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Bounded handoff between a fetch stage, which loads segments from the event store on its own thread, and an emit stage,
+ * which pushes the events into the consumer on the sync loop thread. Next Invalid segment is read while the current one drains.
+ *
+ * Queue is bounded by number of events and optionally by their estimated size in bytes. Full queue pauses the fetch stage
+ * (and so paging of the CS query) until the consumer catches up. Segments are fetched in the order of submission, events
+ * of every segment are followed by an end marker carrying the number of loaded events (or the error of the load).
+ */
+final class PrefetchPipeline implements Closeable
+{
+	private static final long EVENT_OVERHEAD_BYTES = 200L; // map with 5 entries, UUID and timestamp strings
+
+	/**
+	 * Queued event or end marker of a segment (event == null), the marker carries the range the fetch stage loaded.
+	 */
+	private static final class Entry
+	{
+		final Map<String, Object> event;
+		final long bytes;
+		final TimeSegment segment;
+		final int pushed;
+		final Throwable error;
+
+		Entry(Map<String, Object> aEvent, long aBytes)
+		{
+			this(aEvent, aBytes, null, 0, null);
+		}
+
+		Entry(Map<String, Object> aEvent, long aBytes, TimeSegment aSegment, int aPushed, Throwable aError)
+		{
+			event = aEvent;
+			bytes = aBytes;
+			segment = aSegment;
+			pushed = aPushed;
+			error = aError;
+		}
+	}
+
+	private final int maxEvents;
+	private final long maxBytes; // 0 = not bounded by size
+	private final ExecutorService fetcher;
+	private final Deque<Entry> queue = new ArrayDeque<Entry>();
+	private final Deque<TimeSegment> pending = new ArrayDeque<TimeSegment>(); // submitted and not yet drained, accessed by emit stage only
+	private final Map<TimeSegment, Integer> drained = new LinkedHashMap<TimeSegment, Integer>(); // drained ahead of their turn, pushed events by segment
+	private int queuedEvents = 0;
+	private long queuedBytes = 0L;
+	private int generation = 0; // incremented by reset, fetches of older generations are abandoned
+
+	PrefetchPipeline(int aMaxEvents, long aMaxBytes)
+	{
+		this.maxEvents = Math.max(1, aMaxEvents);
+		this.maxBytes = Math.max(0L, aMaxBytes);
+		this.fetcher = Executors.newSingleThreadExecutor(r ->
+		{
+			Thread t = new Thread(r, "cassandra_sync-prefetch");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * True if the segment was submitted and its result was not returned by drain yet.
+	 */
+	boolean isPending(TimeSegment ts)
+	{
+		return pending.contains(ts) || drained.containsKey(ts);
+	}
+
+	/**
+	 * Oldest submitted segment whose result was not returned by drain yet, null if none.
+	 */
+	TimeSegment firstPending()
+	{
+		return drained.isEmpty()?pending.peek():drained.keySet().iterator().next();
+	}
+
+	/**
+	 * Starts loading of the segment once loads of previously submitted segments are finished. Fetch stops when stopped.
+	 */
+	void submit(TimeSegment ts, EventStoreOperations cassandraOps, BooleanSupplier stopped)
+	{
+		if (isPending(ts))
+		{
+			return; // already prefetched
+		}
+
+		pending.add(ts);
+		TimeSegment range = ts.range(); // the plan is not touched by the fetch stage
+		int fetchGeneration;
+		synchronized (this)
+		{
+			fetchGeneration = generation;
+		}
+
+		fetcher.execute(() ->
+		{
+			int pushed = 0;
+			Throwable error = null;
+			try
+			{
+				pushed = cassandraOps.loadCsData(range, event ->
+				{
+					if (stopped.getAsBoolean() || !offer(new Entry(event, estimateBytes(event)), fetchGeneration))
+					{
+						throw new CancellationException("Prefetch of "+range+" cancelled.");
+					}
+				});
+			}
+			catch (Throwable e)
+			{
+				error = e;
+			}
+			offer(new Entry(null, 0L, range, pushed, error), fetchGeneration);
+		});
+	}
+
+	/**
+	 * Pushes queued events into the consumer up to the end of the given segment (events of earlier submitted segments included),
+	 * returns number of events loaded for the segment or -1 if stopped before the segment was fully drained.
+	 * Error of any drained load is rethrown.
+	 */
+	int drain(TimeSegment ts, Consumer<Map<String, Object>> consumer, BooleanSupplier stopped) throws Exception
+	{
+		Integer drainedAhead = drained.remove(ts);
+		if (drainedAhead != null)
+		{
+			return drainedAhead;
+		}
+
+		while (!pending.isEmpty())
+		{
+			Entry entry = take(stopped);
+			if (entry == null)
+			{
+				return -1;
+			}
+
+			if (entry.event != null)
+			{
+				consumer.accept(entry.event);
+				continue;
+			}
+
+			TimeSegment segment = removePending(entry.segment);
+			if (entry.error != null)
+			{
+				throw (entry.error instanceof Exception)?(Exception)entry.error:new Exception(entry.error);
+			}
+			if (segment.equals(ts))
+			{
+				return entry.pushed;
+			}
+			drained.put(segment, entry.pushed); // submitted earlier, result is returned when the loop gets to it
+		}
+		throw new IllegalStateException("Segment "+ts+" was not submitted for prefetch.");
+	}
+
+	/**
+	 * Removes the submitted segment of the bounds of a loaded range (segments are fetched in order, so it is the first one normally).
+	 */
+	private TimeSegment removePending(TimeSegment range)
+	{
+		for (Iterator<TimeSegment> i = pending.iterator(); i.hasNext();)
+		{
+			TimeSegment ts = i.next();
+			if (ts.hasBounds(range))
+			{
+				i.remove();
+				return ts;
+			}
+		}
+		throw new IllegalStateException("Segment "+range+" was not submitted for prefetch.");
+	}
+
+	/**
+	 * Abandons all submitted loads and drops queued events, used after an error or stop.
+	 */
+	void reset()
+	{
+		pending.clear();
+		drained.clear();
+		synchronized (this)
+		{
+			++generation;
+			queue.clear();
+			queuedEvents = 0;
+			queuedBytes = 0L;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Waits for free space in the queue (end markers are never blocked), returns false if the fetch was abandoned meanwhile.
+	 */
+	private synchronized boolean offer(Entry entry, int fetchGeneration)
+	{
+		try
+		{
+			while (fetchGeneration == generation && entry.event != null && queuedEvents > 0
+				   && (queuedEvents >= maxEvents || (maxBytes > 0 && queuedBytes + entry.bytes > maxBytes)))
+			{
+				wait();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+
+		if (fetchGeneration != generation)
+		{
+			return false;
+		}
+
+		queue.add(entry);
+		if (entry.event != null)
+		{
+			++queuedEvents;
+			queuedBytes += entry.bytes;
+		}
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Waits for the next entry, returns null if stopped meanwhile.
+	 */
+	private synchronized Entry take(BooleanSupplier stopped) throws InterruptedException
+	{
+		while (queue.isEmpty())
+		{
+			if (stopped.getAsBoolean())
+			{
+				return null;
+			}
+			wait(100L); // stop flag is not signalled, check it regularly
+		}
+
+		Entry returnValue = queue.poll();
+		if (returnValue.event != null)
+		{
+			--queuedEvents;
+			queuedBytes -= returnValue.bytes;
+		}
+		notifyAll();
+		return returnValue;
+	}
+
+	/**
+	 * Rough heap size of an event (strings are UTF-16), shared tag lists are not counted.
+	 */
+	static long estimateBytes(Map<String, Object> event)
+	{
+		long returnValue = EVENT_OVERHEAD_BYTES;
+		for (Object value : event.values())
+		{
+			if (value instanceof String)
+			{
+				returnValue += 2L*((String)value).length();
+			}
+			else if (value instanceof List)
+			{
+				returnValue += 16L;
+			}
+		}
+		return returnValue;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		reset();
+		fetcher.shutdownNow();
+	}
+}
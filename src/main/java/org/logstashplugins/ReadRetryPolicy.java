@@ -0,0 +1,88 @@
+package org.logstashplugins;
+
+import com.datastax.oss.driver.api.core.ConsistencyLevel;
+import com.datastax.oss.driver.api.core.connection.ClosedConnectionException;
+import com.datastax.oss.driver.api.core.connection.HeartbeatException;
+import com.datastax.oss.driver.api.core.context.DriverContext;
+import com.datastax.oss.driver.api.core.retry.RetryDecision;
+import com.datastax.oss.driver.api.core.retry.RetryPolicy;
+import com.datastax.oss.driver.api.core.servererrors.BootstrappingException;
+import com.datastax.oss.driver.api.core.servererrors.CoordinatorException;
+import com.datastax.oss.driver.api.core.servererrors.OverloadedException;
+import com.datastax.oss.driver.api.core.servererrors.ReadFailureException;
+import com.datastax.oss.driver.api.core.servererrors.ServerError;
+import com.datastax.oss.driver.api.core.servererrors.WriteType;
+import com.datastax.oss.driver.api.core.session.Request;
+
+/**
+ * Retry policy of the CS session (configured by class name, instantiated by the driver), all queries of the plugin are idempotent reads.
+ *
+ * Errors of a busy or restarting node are retried on the next node of the query plan, so that a single slow replica costs
+ * one more request instead of a failed segment and a new session. Errors of the query itself (syntax, authorization, ...)
+ * and any error of a non-idempotent request are rethrown right away.
+ */
+public final class ReadRetryPolicy implements RetryPolicy
+{
+	public static final int MAX_RETRIES = 3;
+
+	public ReadRetryPolicy(DriverContext aContext, String aProfileName)
+	{
+		// nothing configurable, constructor signature is required by the driver
+	}
+
+	@Override
+	public RetryDecision onReadTimeout(Request request, ConsistencyLevel cl, int blockFor, int received, boolean dataPresent, int retryCount)
+	{
+		if (retryCount >= MAX_RETRIES)
+		{
+			return RetryDecision.RETHROW;
+		}
+		// enough replicas answered but the one asked for data did not, it is likely to answer the same coordinator in time now
+		return (received >= blockFor && !dataPresent)?RetryDecision.RETRY_SAME:RetryDecision.RETRY_NEXT;
+	}
+
+	@Override
+	public RetryDecision onWriteTimeout(Request request, ConsistencyLevel cl, WriteType writeType, int blockFor, int received, int retryCount)
+	{
+		return RetryDecision.RETHROW; // plugin does not write to CS
+	}
+
+	@Override
+	public RetryDecision onUnavailable(Request request, ConsistencyLevel cl, int required, int alive, int retryCount)
+	{
+		// coordinator may have a stale view of the ring, another one is asked once
+		return (retryCount == 0)?RetryDecision.RETRY_NEXT:RetryDecision.RETHROW;
+	}
+
+	@Override
+	public RetryDecision onRequestAborted(Request request, Throwable error, int retryCount)
+	{
+		if (retryCount >= MAX_RETRIES || !isIdempotent(request))
+		{
+			return RetryDecision.RETHROW;
+		}
+		return (error instanceof ClosedConnectionException || error instanceof HeartbeatException)?RetryDecision.RETRY_NEXT:RetryDecision.RETHROW;
+	}
+
+	@Override
+	public RetryDecision onErrorResponse(Request request, CoordinatorException error, int retryCount)
+	{
+		if (retryCount >= MAX_RETRIES || !isIdempotent(request))
+		{
+			return RetryDecision.RETHROW;
+		}
+		boolean nodeBusy = error instanceof OverloadedException || error instanceof BootstrappingException
+						   || error instanceof ReadFailureException || error instanceof ServerError;
+		return nodeBusy?RetryDecision.RETRY_NEXT:RetryDecision.RETHROW;
+	}
+
+	private static boolean isIdempotent(Request request)
+	{
+		return !Boolean.FALSE.equals(request.isIdempotent()); // null = default of the profile, which is idempotent for the plugin session
+	}
+
+	@Override
+	public void close()
+	{
+	}
+}
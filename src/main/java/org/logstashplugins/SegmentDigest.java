@@ -0,0 +1,73 @@
+package org.logstashplugins;
+
+/**
+ * Order independent digest of events within a time range: number of distinct events and wrapping sum of their UID hashes.
+ * Digests of adjacent ranges could be added together, which allows comparing whole runs of segments at once.
+ */
+public final class SegmentDigest
+{
+	// 2^64 / golden ratio, the same constant is used by the ES side script
+	public static final long UID_HASH_MULTIPLIER = -7046029254386353131L;
+	
+	private final int count;
+	
+	private final long digest;
+	
+	public SegmentDigest(int aCount, long aDigest)
+	{
+		this.count = aCount;
+		this.digest = aDigest;
+	}
+	
+	public static long hashUid(long mostSignificantBits, long leastSignificantBits)
+	{
+		return mostSignificantBits * UID_HASH_MULTIPLIER + leastSignificantBits;
+	}
+	
+	public int getCount()
+	{
+		return count;
+	}
+	
+	public long getDigest()
+	{
+		return digest;
+	}
+	
+	public SegmentDigest add(SegmentDigest other)
+	{
+		return new SegmentDigest(count + other.count, digest + other.digest);
+	}
+	
+	public SegmentDigest subtract(SegmentDigest other)
+	{
+		return new SegmentDigest(count - other.count, digest - other.digest);
+	}
+	
+	/**
+	 * True if events of this (event store) digest are missing in the indexed one, i.e. the segment has to be loaded.
+	 * Digests of counts only (digest 0) compare by count.
+	 */
+	public boolean requiresLoad(SegmentDigest indexed)
+	{
+		return count > indexed.count || (count == indexed.count && digest != indexed.digest);
+	}
+	
+	@Override
+	public boolean equals(Object other)
+	{
+		return (other instanceof SegmentDigest) && ((SegmentDigest)other).count == count && ((SegmentDigest)other).digest == digest;
+	}
+	
+	@Override
+	public int hashCode()
+	{
+		return Long.hashCode(digest) * 31 + count;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "[count: "+count+", digest: "+Long.toHexString(digest)+"]";
+	}
+}
@@ -0,0 +1,144 @@
+package org.logstashplugins;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Decides which segments of a plan are processed first and which Ok segments are verified again, so that a sync round
+ * ending on its deadline leaves the least valuable work undone.
+ *
+ * Score of a segment is its value per expected cost. Value grows with time since the last verification and with mismatches
+ * found by recent verifications, and it decays with age of the segment, as freshness of recent events matters most.
+ * Expected cost is one verification plus loading of the events expected to be missing (relative to a full segment).
+ * Dirty and Invalid segments ending within the recent window are processed before all others, newest first.
+ */
+final class SegmentScheduler
+{
+	private static final double HOUR_MILLIS = 3600000.0;
+
+	private static final double NEVER_VERIFIED_HOURS = 24.0 * 30.0; // staleness of segments without verification history
+
+	private static final byte OK = SegmentTable.toByte(TimeSegmentStatus.Ok);
+
+	private static final byte INVALID = SegmentTable.toByte(TimeSegmentStatus.Invalid);
+
+	private final long recentWindowMillis;
+
+	private final int syncLimit;
+
+	SegmentScheduler(long aRecentWindowMillis, int aSyncLimit)
+	{
+		this.recentWindowMillis = Math.max(0L, aRecentWindowMillis);
+		this.syncLimit = Math.max(1, aSyncLimit);
+	}
+
+	/**
+	 * Dirty and Invalid segments of the plan in the order of processing.
+	 */
+	List<TimeSegment> schedule(DataSyncPlan plan, long nowMillis)
+	{
+		SegmentTable t = plan.getTable();
+		List<TimeSegment> returnValue = new ArrayList<TimeSegment>();
+
+		// recent window, newest first
+		int i = t.size-1;
+		for (; i >= 0 && t.to[i] > nowMillis - recentWindowMillis; --i)
+		{
+			if (t.status[i] != OK)
+			{
+				returnValue.add(new TimeSegment(t, i));
+			}
+		}
+
+		// older segments by score
+		int pending = 0;
+		long[] keys = new long[i+1];
+		for (; i >= 0; --i)
+		{
+			if (t.status[i] != OK)
+			{
+				keys[pending++] = sortKey(score(t, i, nowMillis), i);
+			}
+		}
+		Arrays.sort(keys, 0, pending);
+		for (int k = pending-1; k >= 0; --k)
+		{
+			returnValue.add(new TimeSegment(t, indexOf(keys[k])));
+		}
+		return returnValue;
+	}
+
+	/**
+	 * Marks up to segmentsToMarkDirty Ok segments Dirty (those with the highest score), returns number of marked segments.
+	 */
+	int markDirty(DataSyncPlan plan, long segmentsToMarkDirty, long nowMillis)
+	{
+		if (segmentsToMarkDirty <= 0)
+		{
+			return 0;
+		}
+
+		SegmentTable t = plan.getTable();
+		int limit = (int)Math.min(segmentsToMarkDirty, t.size);
+		PriorityQueue<Long> best = new PriorityQueue<Long>(limit+1); // worst of the best on top
+		for (int i = 0; i < t.size; ++i)
+		{
+			if (t.status[i] == OK)
+			{
+				best.add(sortKey(score(t, i, nowMillis), i));
+				if (best.size() > limit)
+				{
+					best.poll();
+				}
+			}
+		}
+
+		int returnValue = best.size();
+		for (Long key : best)
+		{
+			t.resetStatus(indexOf(key));
+		}
+		return returnValue;
+	}
+
+	/**
+	 * True if verification of the segment is a routine re-check: it was verified before without any recent mismatch and it ends
+	 * before the recent window (recent events could still be replicating). Routine checks are counted at the cheaper consistency level.
+	 */
+	boolean isRoutine(TimeSegment ts, long nowMillis)
+	{
+		return ts.getVerifiedAt() != 0L && ts.getMismatchCount() == 0 && ts.getToMillis() <= nowMillis - recentWindowMillis;
+	}
+
+	/**
+	 * Value of processing the segment per expected cost, higher first.
+	 */
+	double score(SegmentTable t, int i, long nowMillis)
+	{
+		double ageHours = Math.max(0L, nowMillis - t.to[i]) / HOUR_MILLIS;
+		double stalenessHours = (t.verifiedAt[i] == 0L)?NEVER_VERIFIED_HOURS:Math.min(NEVER_VERIFIED_HOURS, Math.max(0L, nowMillis - t.verifiedAt[i]) / HOUR_MILLIS);
+		int mismatches = t.mismatchCount(i);
+		boolean invalid = t.status[i] == INVALID;
+
+		double value = (1.0 + stalenessHours) * (1.0 + mismatches) * (invalid?2.0:1.0) / (1.0 + ageHours);
+		double expectedLoad = invalid?Math.min(t.csCount[i], syncLimit):t.elCount[i] * (mismatches / 8.0);
+		double cost = 1.0 + Math.min(expectedLoad, syncLimit) / syncLimit;
+		return value / cost;
+	}
+
+	/**
+	 * Score (as float, positive floats order the same way as their bits) in the upper half and segment index in the lower half,
+	 * keys order by score and then by index (newer segment wins a tie).
+	 */
+	private static long sortKey(double score, int index)
+	{
+		return ((long)Float.floatToIntBits((float)score) << 32) | index;
+	}
+
+	private static int indexOf(long sortKey)
+	{
+		return (int)sortKey;
+	}
+}
@@ -0,0 +1,144 @@
+package org.logstashplugins;
+
+import java.util.Arrays;
+
+/**
+ * Column storage of time segments (one primitive array per attribute), rows are addressed by index.
+ *
+ * TimeSegment is only a view of a row, so a plan with hundreds of thousands of segments costs a few tens of bytes per segment
+ * and the plan could be repartitioned by moving rows within the arrays.
+ */
+final class SegmentTable
+{
+	private static final TimeSegmentStatus[] STATUSES = TimeSegmentStatus.values();
+
+	long[] from;
+	long[] to;
+	byte[] status; // TimeSegmentStatus ordinal
+	int[] elCount;
+	int[] csCount;
+	long[] elDigest; // digest of ES events at the time of the last digest verification
+	boolean[] digestKnown;
+	long[] verifiedAt; // millis of the last check against CS, 0 = never
+	byte[] mismatches; // results of the last 8 checks, lowest bit is the latest (1 = Invalid)
+	int size;
+
+	SegmentTable(int aCapacity)
+	{
+		int capacity = Math.max(1, aCapacity);
+		from = new long[capacity];
+		to = new long[capacity];
+		status = new byte[capacity];
+		elCount = new int[capacity];
+		csCount = new int[capacity];
+		elDigest = new long[capacity];
+		digestKnown = new boolean[capacity];
+		verifiedAt = new long[capacity];
+		mismatches = new byte[capacity];
+	}
+
+	static TimeSegmentStatus toStatus(byte aStatus)
+	{
+		return STATUSES[aStatus];
+	}
+
+	static byte toByte(TimeSegmentStatus aStatus)
+	{
+		return (byte)aStatus.ordinal();
+	}
+
+	void ensureCapacity(int aCapacity)
+	{
+		if (aCapacity > from.length)
+		{
+			int capacity = Math.max(aCapacity, from.length + (from.length >> 1));
+			from = Arrays.copyOf(from, capacity);
+			to = Arrays.copyOf(to, capacity);
+			status = Arrays.copyOf(status, capacity);
+			elCount = Arrays.copyOf(elCount, capacity);
+			csCount = Arrays.copyOf(csCount, capacity);
+			elDigest = Arrays.copyOf(elDigest, capacity);
+			digestKnown = Arrays.copyOf(digestKnown, capacity);
+			verifiedAt = Arrays.copyOf(verifiedAt, capacity);
+			mismatches = Arrays.copyOf(mismatches, capacity);
+		}
+	}
+
+	/**
+	 * Appends a new Dirty segment, returns its index.
+	 */
+	int add(long aFrom, long aTo)
+	{
+		ensureCapacity(size+1);
+		setDirty(size, aFrom, aTo);
+		return size++;
+	}
+
+	/**
+	 * Overwrites row with a Dirty segment without any verification history.
+	 */
+	void setDirty(int index, long aFrom, long aTo)
+	{
+		from[index] = aFrom;
+		to[index] = aTo;
+		resetStatus(index);
+		verifiedAt[index] = 0L;
+		mismatches[index] = 0;
+	}
+
+	/**
+	 * Shifts the check result into the mismatch history.
+	 */
+	void recordCheck(int index, boolean mismatch)
+	{
+		mismatches[index] = (byte)((mismatches[index] << 1) | (mismatch?1:0));
+	}
+
+	/**
+	 * Number of mismatches within the last 8 checks.
+	 */
+	int mismatchCount(int index)
+	{
+		return Integer.bitCount(mismatches[index] & 0xFF);
+	}
+
+	void resetStatus(int index)
+	{
+		status[index] = toByte(TimeSegmentStatus.Dirty);
+		elCount[index] = 0;
+		csCount[index] = 0;
+		digestKnown[index] = false;
+	}
+
+	void copy(int src, int dst)
+	{
+		from[dst] = from[src];
+		to[dst] = to[src];
+		status[dst] = status[src];
+		elCount[dst] = elCount[src];
+		csCount[dst] = csCount[src];
+		elDigest[dst] = elDigest[src];
+		digestKnown[dst] = digestKnown[src];
+		verifiedAt[dst] = verifiedAt[src];
+		mismatches[dst] = mismatches[src];
+	}
+
+	/**
+	 * Moves rows [src, size) to start at dst (either direction), size is adjusted accordingly.
+	 */
+	void shift(int src, int dst)
+	{
+		int length = size - src;
+		ensureCapacity(dst + length);
+		System.arraycopy(from, src, from, dst, length);
+		System.arraycopy(to, src, to, dst, length);
+		System.arraycopy(status, src, status, dst, length);
+		System.arraycopy(elCount, src, elCount, dst, length);
+		System.arraycopy(csCount, src, csCount, dst, length);
+		System.arraycopy(elDigest, src, elDigest, dst, length);
+		System.arraycopy(digestKnown, src, digestKnown, dst, length);
+		System.arraycopy(verifiedAt, src, verifiedAt, dst, length);
+		System.arraycopy(mismatches, src, mismatches, dst, length);
+		size = dst + length;
+	}
+}
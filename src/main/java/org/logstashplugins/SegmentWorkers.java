@@ -0,0 +1,331 @@
+package org.logstashplugins;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import org.apache.logging.log4j.Logger;
+
+import com.datastax.oss.driver.shaded.guava.common.base.Stopwatch;
+
+/**
+ * Processes Dirty and Invalid segments of a plan concurrently (up to configured parallelism) using async ES and CS clients.
+ *
+ * Queries run concurrently on standalone ranges of the segments, all segment state changes (check results, status resets and flooding
+ * 'dirty' to neighbours) are applied on the calling thread to segments found by bounds of the results as they arrive. Round returns only after all in-flight work is finished,
+ * so the plan could be safely repartitioned between rounds. Load listener is notified of loaded segments on the calling thread as well.
+ */
+public final class SegmentWorkers implements Closeable
+{
+	private final int parallelism;
+
+	private final int syncLimit;
+
+	private final boolean digestVerification;
+
+	private final Clock clock;
+
+	private final SyncMetrics metrics;
+
+	private final Consumer<TimeSegment> loadListener; // notified of every loaded segment
+
+	private final Logger log;
+
+	private final ExecutorService executor;
+
+	/**
+	 * Outcome of processing of a single segment range, applied to the segment of the same bounds by the coordinating thread.
+	 */
+	private static final class Completion
+	{
+		final TimeSegment range;
+		final boolean verified; // segment was Dirty and has been counted
+		final int countEs;
+		final int countCs;
+		final int pushed; // -1 if nothing was loaded
+		final Throwable error;
+		SegmentDigest digestEs; // set only by digest verification
+		SegmentDigest digestCs;
+
+		Completion(TimeSegment aRange, boolean aVerified, int aCountEs, int aCountCs, int aPushed, Throwable aError)
+		{
+			range = aRange;
+			verified = aVerified;
+			countEs = aCountEs;
+			countCs = aCountCs;
+			pushed = aPushed;
+			error = aError;
+		}
+
+		Completion withDigests(SegmentDigest aDigestEs, SegmentDigest aDigestCs)
+		{
+			digestEs = aDigestEs;
+			digestCs = aDigestCs;
+			return this;
+		}
+	}
+
+	public SegmentWorkers(int aParallelism, int aSyncLimit, boolean aDigestVerification, Clock aClock, SyncMetrics aMetrics, Consumer<TimeSegment> aLoadListener, Logger aLog)
+	{
+		this.parallelism = aParallelism;
+		this.syncLimit = aSyncLimit;
+		this.digestVerification = aDigestVerification;
+		this.clock = aClock;
+		this.metrics = aMetrics;
+		this.loadListener = aLoadListener;
+		this.log = aLog;
+
+		AtomicInteger threadIndex = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(aParallelism, r ->
+		{
+			Thread t = new Thread(r, "cassandra_sync-worker-"+threadIndex.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Processes scheduled Dirty and Invalid segments (in the order of the schedule) until all are processed or sync period is exceeded.
+	 * Returns number of processed segments. Verification of segments accepted by routine is counted at the routine consistency level.
+	 */
+	public int processRound(List<TimeSegment> schedule, Map<TimeSegment, Integer> esCounts, Predicate<TimeSegment> routine, EventIndexOperations elasticOps, EventStoreOperations cassandraOps,
+							Consumer<Map<String, Object>> consumer, Stopwatch sw, Duration syncMillis, BooleanSupplier stopped) throws Exception
+	{
+		BlockingQueue<Completion> completions = new LinkedBlockingQueue<Completion>();
+		Map<TimeSegment, TimeSegment> inFlight = new HashMap<TimeSegment, TimeSegment>(); // segments by ranges of their work
+		Set<TimeSegment> floodedInFlight = new HashSet<TimeSegment>(); // ranges
+		Deque<TimeSegment> flooded = new ArrayDeque<TimeSegment>(); // neighbours turned dirty during this round
+		Iterator<TimeSegment> planIterator = schedule.iterator();
+		Throwable firstError = null;
+		int segmentsProcessed = 0;
+
+		while (true)
+		{
+			while (firstError == null && inFlight.size() < parallelism && sw.elapsed().compareTo(syncMillis) <= 0 && !stopped.getAsBoolean())
+			{
+				TimeSegment ts = flooded.isEmpty()?(planIterator.hasNext()?planIterator.next():null):flooded.poll();
+				if (ts == null)
+				{
+					break;
+				}
+
+				TimeSegment range = ts.range();
+				if (ts.getStatus() != TimeSegmentStatus.Ok && !inFlight.containsKey(range))
+				{
+					boolean approximate = !digestVerification && cassandraOps.isCountApproximate(ts); // segment state is read on this thread only
+					CompletableFuture<Completion> work = launch(range, ts.getStatus() == TimeSegmentStatus.Invalid, esCounts.remove(ts), routine.test(ts), approximate, elasticOps, cassandraOps, consumer);
+					inFlight.put(range, ts);
+					work.thenAccept(completions::add);
+				}
+			}
+
+			if (inFlight.isEmpty())
+			{
+				break;
+			}
+
+			Completion c = completions.take();
+			TimeSegment segment = inFlight.remove(c.range);
+			if (c.error != null)
+			{
+				if (firstError == null)
+				{
+					firstError = c.error;
+				}
+				continue; // wait for remaining in-flight work, state of failed segment stays as is
+			}
+
+			if (c.verified && c.digestEs != null)
+			{
+				segment.setCheckResult(c.digestEs, c.digestCs); // segment becomes either Ok or invalid (invalid if count or digest does not match)
+			}
+			else if (c.verified)
+			{
+				segment.setCheckResult(c.countEs, c.countCs); // segment becomes either Ok or invalid (invalid if count does not match)
+			}
+			if (c.verified && c.countCs != Integer.MAX_VALUE) // oversized segments were not compared with CS
+			{
+				segment.setVerifiedAt(clock.millis());
+			}
+
+			if (c.pushed >= 0)
+			{
+				log.info("Pushed "+c.pushed+" events for TS: "+segment);
+				loadListener.accept(segment);
+				segment.resetStatus();
+				if (c.verified) //when segment transitions from dirty -> invalid, neighbouring segments become dirty
+				{
+					flood(segment, segment.getPrevious(), inFlight, floodedInFlight, flooded);
+					flood(segment, segment.getNext(), inFlight, floodedInFlight, flooded);
+				}
+			}
+
+			if (floodedInFlight.remove(c.range))
+			{
+				segment.resetStatus(); // neighbour was loaded while this one was being verified, keep it dirty
+			}
+			++segmentsProcessed;
+		}
+
+		if (firstError != null)
+		{
+			throw (firstError instanceof Exception)?(Exception)firstError:new Exception(firstError);
+		}
+
+		return segmentsProcessed;
+	}
+
+	private void flood(TimeSegment segment, TimeSegment neighbour, Map<TimeSegment, TimeSegment> inFlight, Set<TimeSegment> floodedInFlight, Deque<TimeSegment> flooded)
+	{
+		if (neighbour.equals(segment)) // first and last segments are their own neighbours
+		{
+			return;
+		}
+		
+		neighbour.resetStatus();
+		TimeSegment range = neighbour.range();
+		if (inFlight.containsKey(range))
+		{
+			floodedInFlight.add(range);
+		}
+		else
+		{
+			flooded.add(neighbour);
+		}
+	}
+
+	/**
+	 * Starts processing of a segment range, state of the segment (Invalid, approximate count) is read by the caller.
+	 */
+	private CompletableFuture<Completion> launch(TimeSegment ts, boolean invalid, Integer prefetchedCountEs, boolean routine, boolean approximate, EventIndexOperations elasticOps, EventStoreOperations cassandraOps, Consumer<Map<String, Object>> consumer)
+	{
+		CompletableFuture<Completion> work;
+		try
+		{
+			if (invalid)
+			{
+				work = cassandraOps.loadCsDataAsync(ts, consumer, executor)
+								   .thenApply(pushed -> new Completion(ts, false, 0, 0, pushed, null));
+			}
+			else if (prefetchedCountEs != null && prefetchedCountEs >= syncLimit) // it is clear that we need to load some data (and also split segment, no need to query CS now)
+			{
+				work = CompletableFuture.completedFuture(new Completion(ts, true, prefetchedCountEs, Integer.MAX_VALUE, -1, null));
+			}
+			else
+			{
+				// CS is queried together with ES, so verification takes the longer of the two round trips instead of their sum
+				CompletableFuture<Integer> countEsFuture = (prefetchedCountEs != null)?CompletableFuture.completedFuture(prefetchedCountEs):elasticOps.countEsDataAsync(ts);
+				CompletableFuture<SegmentDigest> csFuture = queryCs(ts, routine, approximate, cassandraOps);
+				work = countEsFuture.thenComposeAsync(countEs ->
+				{
+					if (countEs >= syncLimit) // it is clear that we need to load some data (and also split segment, CS result is not needed)
+					{
+						csFuture.cancel(false); // no more pages of the running query are requested, no worker waits for it
+						return CompletableFuture.completedFuture(new Completion(ts, true, countEs, Integer.MAX_VALUE, -1, null));
+					}
+
+					if (digestVerification)
+					{
+						return CompletableFuture.supplyAsync(() -> digestEs(ts, elasticOps), executor).thenCombine(csFuture, (digestEs, digestCs) -> new SegmentDigest[] { digestEs, digestCs })
+												.thenCompose(digests -> confirm(ts, routine, approximate, digests[0], digests[1], cassandraOps).thenApply(digestCs -> new SegmentDigest[] { digests[0], digestCs })).thenCompose(digests ->
+						{
+							SegmentDigest digestEs = digests[0], digestCs = digests[1];
+							if (digestCs.getCount() >= syncLimit) // cut off by the query limit, to be split instead of loaded
+							{
+								return CompletableFuture.completedFuture(new Completion(ts, true, digestEs.getCount(), Integer.MAX_VALUE, -1, null));
+							}
+							if (!digestCs.requiresLoad(digestEs))
+							{
+								return CompletableFuture.completedFuture(new Completion(ts, true, digestEs.getCount(), digestCs.getCount(), -1, null).withDigests(digestEs, digestCs));
+							}
+
+							return cassandraOps.loadCsDataAsync(ts, consumer, executor)
+											   .thenApply(pushed -> new Completion(ts, true, digestEs.getCount(), digestCs.getCount(), pushed, null).withDigests(digestEs, digestCs));
+						});
+					}
+
+					return csFuture.thenCompose(digestCs -> confirm(ts, routine, approximate, new SegmentDigest(countEs, 0L), digestCs, cassandraOps)).thenCompose(digestCs ->
+					{
+						int countCs = digestCs.getCount();
+						if (countCs >= syncLimit) // cut off by the query limit, to be split instead of loaded
+						{
+							return CompletableFuture.completedFuture(new Completion(ts, true, countEs, Integer.MAX_VALUE, -1, null));
+						}
+						if (countCs <= countEs)
+						{
+							return CompletableFuture.completedFuture(new Completion(ts, true, countEs, countCs, -1, null));
+						}
+
+						return cassandraOps.loadCsDataAsync(ts, consumer, executor)
+										   .thenApply(pushed -> new Completion(ts, true, countEs, countCs, pushed, null));
+					});
+				}, executor);
+			}
+		}
+		catch (Exception e)
+		{
+			work = new CompletableFuture<Completion>();
+			work.completeExceptionally(e);
+		}
+
+		return work.exceptionally(error -> new Completion(ts, false, 0, 0, -1, (error instanceof CompletionException && error.getCause() != null)?error.getCause():error));
+	}
+
+	private CompletableFuture<SegmentDigest> queryCs(TimeSegment ts, boolean routine, boolean approximate, EventStoreOperations cassandraOps)
+	{
+		if (digestVerification)
+		{
+			return cassandraOps.digestCsDataAsync(ts, routine, executor);
+		}
+		CompletableFuture<Integer> countCs = cassandraOps.countCsDataAsync(ts, routine, approximate, executor);
+		return EventStoreOperations.cancelling(countCs, countCs.thenApply(count -> new SegmentDigest(count, 0L))); // cancel stops the count
+	}
+
+	/**
+	 * Routine or approximate (fast count) CS result which would lead to a load is replaced by an exact count (with digest) at the strong
+	 * consistency level, as the cheap one could be stale or could count duplicates.
+	 */
+	private CompletableFuture<SegmentDigest> confirm(TimeSegment ts, boolean routine, boolean approximate, SegmentDigest digestEs, SegmentDigest digestCs, EventStoreOperations cassandraOps)
+	{
+		boolean escalated = (routine || approximate) && digestCs.requiresLoad(digestEs);
+		metrics.verification(routine, escalated);
+		return escalated?cassandraOps.digestCsDataAsync(ts, false, executor):CompletableFuture.completedFuture(digestCs);
+	}
+
+	private SegmentDigest digestEs(TimeSegment ts, EventIndexOperations elasticOps)
+	{
+		try
+		{
+			return elasticOps.digestEsData(ts);
+		}
+		catch (IOException e)
+		{
+			throw new CompletionException(e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		executor.shutdownNow();
+	}
+}
@@ -0,0 +1,775 @@
+package org.logstashplugins;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.Logger;
+
+import com.datastax.oss.driver.shaded.guava.common.base.Stopwatch;
+import com.datastax.oss.driver.shaded.guava.common.base.Ticker;
+
+/**
+ * Sync loop of CassandraSync: every round verifies and loads segments of the plan within the sync period, repartitions the plan,
+ * marks some segments dirty again and sleeps for the rest of the period.
+ *
+ * Operations are created by the supplied factories (again after any error) and time is taken from the supplied clock and sleeper,
+ * so the loop could be driven by in-memory operations on a virtual clock (see SyncSimulator in tests).
+ */
+public final class SyncLoop implements Closeable
+{
+	/**
+	 * Waits for the given time, Thread::sleep for real time.
+	 */
+	public interface Sleeper
+	{
+		void sleep(long millis) throws InterruptedException;
+	}
+
+	private static final long MIN_ERROR_PAUSE_MILLIS = 1000L;
+
+	private static final long MAX_ERROR_PAUSE_MILLIS = 30000L;
+
+	private static final int FAILURES_TO_RECONNECT = 3; // consecutive failed rounds after which operations are created again
+
+	private static final int PREFETCH_LOOKAHEAD = 64; // how many following segments are searched for an Invalid one to prefetch
+
+	private static final int CS_SPLIT_PARTS = 16; // segment oversized only in CS is split evenly by time into that many parts
+
+	private static final long MIN_SPLIT_MILLIS = 1000L;
+
+	private static final Duration DEFAULT_RECENT_WINDOW = Duration.ofHours(1);
+
+	private static final Duration DEFAULT_AUDIT_PERIOD = Duration.ofHours(1);
+
+	private final int syncLimit;
+	private final Duration syncMillis;
+	private final int loadDepthDays;
+	private final boolean digestVerification;
+	private final Path checkpointFile; // null = no checkpoint
+	private final Duration checkpointPeriod;
+	private final Callable<EventIndexOperations> elasticOpsFactory;
+	private final Callable<EventStoreOperations> cassandraOpsFactory;
+	private final Clock clock;
+	private final Sleeper sleeper;
+	private final SyncMetrics metrics;
+	private final Logger log;
+
+	private final SegmentWorkers segmentWorkers;
+	private final ExecutorService verifyExecutor; // CS side of sequential verification, null with segment workers
+	private PrefetchPipeline prefetch; // null = segments are loaded directly by the loop thread
+	private SegmentScheduler scheduler;
+	private TailFetcher tail; // null = new events are found by the plan loop only
+	private TokenRangeBackfill backfill; // null = history is synced by the plan only (or it was backfilled already)
+	private CountCache countCache; // null = every verification counts both stores
+	private final Stopwatch sw;
+	private final Stopwatch checkpointSw;
+	private final Stopwatch auditSw;
+	private Duration auditPeriod = DEFAULT_AUDIT_PERIOD;
+	private DataSyncPlan plan;
+	private EventIndexOperations elasticOps;
+	private volatile EventStoreOperations cassandraOps; // read by the tail thread as well
+
+	public SyncLoop(int aSyncLimit, Duration aSyncMillis, int aSyncParallelism, int aLoadDepthDays, boolean aDigestVerification, Path aCheckpointFile, Duration aCheckpointPeriod,
+					Callable<EventIndexOperations> aElasticOpsFactory, Callable<EventStoreOperations> aCassandraOpsFactory, Clock aClock, Sleeper aSleeper, SyncMetrics aMetrics, Logger aLog)
+	{
+		this.syncLimit = aSyncLimit;
+		this.syncMillis = aSyncMillis;
+		this.loadDepthDays = aLoadDepthDays;
+		this.digestVerification = aDigestVerification;
+		this.checkpointFile = aCheckpointFile;
+		this.checkpointPeriod = aCheckpointPeriod;
+		this.elasticOpsFactory = aElasticOpsFactory;
+		this.cassandraOpsFactory = aCassandraOpsFactory;
+		this.clock = aClock;
+		this.sleeper = aSleeper;
+		this.metrics = aMetrics;
+		this.log = aLog;
+
+		Ticker ticker = aClock.equals(Clock.systemUTC())?Ticker.systemTicker():new Ticker() // virtual clocks are followed with millisecond resolution
+		{
+			@Override
+			public long read()
+			{
+				return TimeUnit.MILLISECONDS.toNanos(clock.millis());
+			}
+		};
+		this.sw = Stopwatch.createUnstarted(ticker);
+		this.checkpointSw = Stopwatch.createStarted(ticker);
+		this.auditSw = Stopwatch.createStarted(ticker);
+		this.scheduler = new SegmentScheduler(DEFAULT_RECENT_WINDOW.toMillis(), aSyncLimit);
+		this.segmentWorkers = (aSyncParallelism > 1)?new SegmentWorkers(aSyncParallelism, aSyncLimit, aDigestVerification, aClock, aMetrics, this::segmentLoaded, aLog):null;
+		this.verifyExecutor = (segmentWorkers == null)?Executors.newSingleThreadExecutor(r ->
+		{
+			Thread t = new Thread(r, "cassandra_sync-verify");
+			t.setDaemon(true);
+			return t;
+		}):null;
+	}
+
+	/**
+	 * Loads segments through a prefetching pipeline bounded by maxEvents and optionally by estimated maxBytes (0 = no size bound).
+	 * Applies to sequential processing only, concurrent segment workers already overlap loading with pushing.
+	 */
+	public void enablePrefetch(int maxEvents, long maxBytes)
+	{
+		if (segmentWorkers == null && prefetch == null && maxEvents > 0)
+		{
+			prefetch = new PrefetchPipeline(maxEvents, maxBytes);
+		}
+	}
+
+	/**
+	 * Polls the newest events every interval in background (see TailFetcher), overlap is how late could an event be written
+	 * after its 'created' time and still be picked by the tail.
+	 */
+	public void enableTail(Duration aInterval, Duration aOverlap)
+	{
+		if (tail == null && !aInterval.isZero() && !aInterval.isNegative())
+		{
+			tail = new TailFetcher(aInterval, aOverlap, syncLimit, () -> cassandraOps, clock, metrics, log);
+		}
+	}
+
+	/**
+	 * Loads the whole history by a parallel token range scan before the first round if the index is empty (see TokenRangeBackfill),
+	 * parallelism is number of concurrently scanned ranges, the ring is split into at least minParts ranges.
+	 */
+	public void enableBackfill(int parallelism, int minParts)
+	{
+		if (backfill == null && parallelism > 0)
+		{
+			backfill = new TokenRangeBackfill(parallelism, minParts, log);
+		}
+	}
+
+	/**
+	 * Routine re-verification of segments found Ok before is answered from cached counts while they are valid (see CountCache).
+	 */
+	public void enableCountCache()
+	{
+		if (countCache == null)
+		{
+			countCache = new CountCache();
+		}
+	}
+
+	/**
+	 * Dirty and Invalid segments ending within the window before now are processed before all others, newest first (default 1 hour).
+	 */
+	public void setRecentWindow(Duration aRecentWindow)
+	{
+		scheduler = new SegmentScheduler(aRecentWindow.toMillis(), syncLimit);
+	}
+
+	/**
+	 * Minimal time between digest audits of Ok segments (default 1 hour), the audit hashes UIDs of the whole verified history in ES.
+	 */
+	public void setAuditPeriod(Duration aAuditPeriod)
+	{
+		auditPeriod = aAuditPeriod;
+	}
+
+	public DataSyncPlan getPlan()
+	{
+		if (plan == null)
+		{
+			plan = createPlan();
+		}
+		return plan;
+	}
+
+	/**
+	 * Runs rounds until stopped, a failed round is followed by a pause growing with the number of consecutive failures.
+	 * Operations recover from errors of single queries themselves, they are closed and created again only after repeated failures.
+	 */
+	public void run(Consumer<Map<String, Object>> consumer, BooleanSupplier stopped)
+	{
+		if (tail != null)
+		{
+			tail.start((countCache == null)?consumer:event ->
+			{
+				Object created = event.get("created");
+				if (created != null)
+				{
+					long createdMillis = Instant.parse((String)created).toEpochMilli();
+					countCache.invalidate(createdMillis, createdMillis+1);
+				}
+				consumer.accept(event);
+			}, stopped);
+		}
+
+		int failures = 0;
+		while (!stopped.getAsBoolean())
+		{
+			try
+			{
+				runRound(consumer, stopped);
+				failures = 0;
+			}
+			catch (InterruptedException e)
+			{
+				long pause = errorPauseMillis(++failures);
+				log.info("InterruptedException while sleeping, Plugin CassandraSync will continue after "+pause+"ms.");
+				try { sleeper.sleep(pause); } catch (InterruptedException ee) {/*ignore*/};
+			}
+			catch (Exception e)
+			{
+				long pause = errorPauseMillis(++failures);
+				log.error("Error while running CassandraSync input plugin ("+failures+" failed rounds in a row). Plugin CassandraSync will continue after "+pause+"ms.", e);
+				try { sleeper.sleep(pause); } catch (InterruptedException ee) {/*ignore*/};
+				if (failures % FAILURES_TO_RECONNECT == 0)
+				{
+					closeOperations();
+				}
+			}
+		}
+
+		if (checkpointFile != null)
+		{
+			saveCheckpoint(getPlan());
+		}
+	}
+
+	/**
+	 * Pause after the given number of consecutive failed rounds, doubles from a second up to 30s.
+	 */
+	static long errorPauseMillis(int failures)
+	{
+		return Math.min(MAX_ERROR_PAUSE_MILLIS, MIN_ERROR_PAUSE_MILLIS << Math.min(Math.max(0, failures-1), 5));
+	}
+
+	/**
+	 * One sync round including the sleep for the rest of the sync period, returns number of processed segments.
+	 */
+	public int runRound(Consumer<Map<String, Object>> consumer, BooleanSupplier stopped) throws Exception
+	{
+		if (elasticOps == null || cassandraOps == null)
+		{
+			// init
+			log.info("Plugin CassandraSync initializing.");
+			elasticOps = elasticOpsFactory.call();
+			cassandraOps = cassandraOpsFactory.call();
+			log.info("Plugin CassandraSync initialized, starting sync.");
+		}
+		if (backfill != null)
+		{
+			runBackfill(consumer, stopped);
+		}
+		DataSyncPlan plan = getPlan();
+
+		sw.reset(); sw.start();
+		long phaseStart = System.nanoTime();
+		int segmentsProcessed = 0;
+		TimeSegment planBoundary = plan.ShiftToNow();
+		plan.Repartition();
+		phaseStart = metrics.phase("repartition", phaseStart);
+		long deletedCount = elasticOps.deleteOlder(planBoundary);
+		if (deletedCount > 0)
+		{
+			log.info("Deleted "+deletedCount+" events older than "+planBoundary.getFromTs());
+		}
+		phaseStart = metrics.phase("delete", phaseStart);
+
+		long roundStartMillis = clock.millis();
+		if (countCache != null)
+		{
+			segmentsProcessed += applyCachedCounts(plan, roundStartMillis);
+			phaseStart = metrics.phase("count_cache", phaseStart);
+		}
+
+		Map<TimeSegment, Integer> esCounts = elasticOps.countEsData(plan.getSegments(TimeSegmentStatus.Dirty)); // pre-fetched in batches, each used at most once
+		phaseStart = metrics.phase("prefetch_counts", phaseStart);
+		List<TimeSegment> schedule = scheduler.schedule(plan, clock.millis());
+		if (segmentWorkers != null)
+		{
+			segmentsProcessed += segmentWorkers.processRound(schedule, esCounts, ts -> scheduler.isRoutine(ts, clock.millis()), elasticOps, cassandraOps, consumer, sw, syncMillis, stopped);
+		}
+		else
+		{
+			segmentsProcessed += processSegments(schedule, esCounts, consumer, stopped);
+		}
+		boolean budgetExhausted = sw.elapsed().compareTo(syncMillis) > 0;
+		phaseStart = metrics.phase("verify_and_load", phaseStart);
+		if (countCache != null)
+		{
+			cacheCounts(plan, roundStartMillis);
+		}
+
+		if (digestVerification && sw.elapsed().compareTo(syncMillis) <= 0 && auditSw.elapsed().compareTo(auditPeriod) >= 0)
+		{
+			DigestVerifier verifier = new DigestVerifier(plan);
+			List<TimeSegment> changed = verifier.audit(elasticOps);
+			for (TimeSegment ts : changed)
+			{
+				ts.resetStatus(); // re-verify segments whose ES content changed since the last verification
+				if (countCache != null)
+				{
+					countCache.invalidate(ts.getFromMillis(), ts.getToMillis());
+				}
+			}
+			log.info("Digest audit found "+changed.size()+" changed segments in "+verifier.getRoundTrips()+" round trips.");
+			auditSw.reset(); auditSw.start();
+			phaseStart = metrics.phase("audit", phaseStart);
+		}
+
+		plan.ShiftToNow();
+		plan.Repartition(planSplits(plan));
+		phaseStart = metrics.phase("repartition", phaseStart);
+		metrics.roundFinished(plan);
+		int deferred = budgetExhausted?plan.getDirtyCount() + plan.getInvalidCount():0;
+		metrics.deferredSegments(deferred);
+		if (budgetExhausted)
+		{
+			log.warn("Sync period of "+syncMillis.toMillis()+"ms exhausted after "+segmentsProcessed+" segments, "+deferred+" segments are left Dirty or Invalid for the next rounds.");
+		}
+
+		if (checkpointFile != null && checkpointSw.elapsed().compareTo(checkpointPeriod) >= 0)
+		{
+			saveCheckpoint(plan);
+			checkpointSw.reset(); checkpointSw.start();
+			phaseStart = metrics.phase("checkpoint", phaseStart);
+		}
+
+		// Mark some segments as dirty, depending of how much time is left and prioritize by score (see SegmentScheduler)
+		// sleep for the remaining time of sync period (if there was no work to)
+		long elapsed = sw.elapsed().toMillis();
+		long remainingMillis = Math.max(0,syncMillis.minus(sw.elapsed()).toMillis());
+		long targetWorkMillisRemaining = Math.max(0L, remainingMillis - syncMillis.toMillis()/2);
+		long segmentsToMarkDirty = Math.min(1+2*segmentsProcessed, targetWorkMillisRemaining / (2*Math.max(1L, elapsed/(1+segmentsProcessed)))); // balanced to not jump from idle to high processing load
+		log.info("Processed "+segmentsProcessed+" segments (plan: "+plan+") in "+elapsed+"ms, going to mark up to "+segmentsToMarkDirty+" segments as dirty and sleep for the remaining "+remainingMillis+"ms");
+		try { sleeper.sleep(remainingMillis); } catch (InterruptedException ee) {/*ignore*/};
+		metrics.phase("sleep", phaseStart);
+		scheduler.markDirty(plan, segmentsToMarkDirty, clock.millis());
+
+		return segmentsProcessed;
+	}
+
+	/**
+	 * Backfills the plan window if the index has no events in it and replaces the plan by segments of the backfilled events.
+	 * Backfill is attempted once, after an error (or with a non-empty index) the history is left to the plan.
+	 */
+	private void runBackfill(Consumer<Map<String, Object>> consumer, BooleanSupplier stopped) throws Exception
+	{
+		TokenRangeBackfill attempt = backfill;
+		backfill = null;
+
+		DataSyncPlan plan = getPlan();
+		TimeSegment window = plan.ShiftToNow();
+		int indexed = elasticOps.countEsData(window);
+		if (indexed > 0)
+		{
+			log.info("Backfill skipped, index already has "+indexed+" events within "+window);
+			return;
+		}
+
+		long phaseStart = System.nanoTime();
+		SegmentTable segments = attempt.run(window, cassandraOps, consumer, stopped);
+		metrics.phase("backfill", phaseStart);
+		if (segments != null)
+		{
+			segmentLoaded(window);
+			this.plan = new DataSyncPlan(loadDepthDays, syncLimit, segments, clock);
+			this.plan.Repartition();
+			log.info("Backfill finished, plan: "+this.plan);
+		}
+	}
+
+	/**
+	 * Sets check results of routine Dirty segments with valid cached counts, returns number of such segments.
+	 */
+	private int applyCachedCounts(DataSyncPlan plan, long nowMillis)
+	{
+		long tagVersion = cassandraOps.getTagVersion();
+		int entries = countCache.evict(tagVersion, nowMillis);
+		int hits = 0;
+		for (TimeSegment ts : plan.getSegments(TimeSegmentStatus.Dirty))
+		{
+			if (scheduler.isRoutine(ts, nowMillis) && countCache.apply(ts, tagVersion, nowMillis))
+			{
+				ts.setVerifiedAt(nowMillis);
+				++hits;
+			}
+		}
+		metrics.countCache(hits, entries);
+		return hits;
+	}
+
+	/**
+	 * Caches counts of segments found Ok since the round started.
+	 */
+	private void cacheCounts(DataSyncPlan plan, long roundStartMillis)
+	{
+		long tagVersion = cassandraOps.getTagVersion();
+		long now = clock.millis();
+		for (TimeSegment ts : plan)
+		{
+			if (ts.getVerifiedAt() >= roundStartMillis)
+			{
+				countCache.put(ts, tagVersion, now);
+			}
+		}
+	}
+
+	/**
+	 * Called after events of the segment were pushed (on the loop thread).
+	 */
+	private void segmentLoaded(TimeSegment ts)
+	{
+		if (countCache != null)
+		{
+			countCache.invalidate(ts.getFromMillis(), ts.getToMillis());
+		}
+	}
+
+	/**
+	 * Processes scheduled segments one by one until sync period is exceeded, returns number of processed segments.
+	 */
+	private int processSegments(List<TimeSegment> schedule, Map<TimeSegment, Integer> esCounts, Consumer<Map<String, Object>> consumer, BooleanSupplier stopped) throws Exception
+	{
+		try
+		{
+			int segmentsProcessed = processSegmentsInOrder(schedule, esCounts, consumer, stopped);
+			if (prefetch != null)
+			{
+				// segments prefetched ahead are pushed even if the sync period is exceeded, their events are already read
+				for (TimeSegment ts = prefetch.firstPending(); ts != null && !stopped.getAsBoolean(); ts = prefetch.firstPending())
+				{
+					int pushed = prefetch.drain(ts, consumer, stopped);
+					if (pushed >= 0)
+					{
+						log.info("Pushed "+pushed+" events for TS: "+ts);
+						segmentLoaded(ts);
+						ts.resetStatus();
+						++segmentsProcessed;
+					}
+				}
+			}
+			return segmentsProcessed;
+		}
+		finally
+		{
+			if (prefetch != null)
+			{
+				prefetch.reset(); // abandons loads after an error or stop
+			}
+		}
+	}
+
+	private int processSegmentsInOrder(List<TimeSegment> schedule, Map<TimeSegment, Integer> esCounts, Consumer<Map<String, Object>> consumer, BooleanSupplier stopped) throws Exception
+	{
+		int segmentsProcessed = 0;
+		Deque<TimeSegment> flooded = new ArrayDeque<TimeSegment>(); // neighbours turned dirty during this round, processed first
+		int next = 0;
+		while (!flooded.isEmpty() || next < schedule.size())
+		{
+			TimeSegment ts = flooded.isEmpty()?schedule.get(next++):flooded.poll();
+			if (ts.getStatus() == TimeSegmentStatus.Ok)
+			{
+				continue; // verified meanwhile
+			}
+
+			if (ts.getStatus() == TimeSegmentStatus.Invalid || (prefetch != null && prefetch.isPending(ts))) // prefetched segment could be flooded 'dirty' meanwhile
+			{
+				int pushed = load(ts, consumer, stopped, schedule, next);
+				if (pushed < 0)
+				{
+					break; // stopped
+				}
+				log.info("Pushed "+pushed+" events for TS: "+ts);
+				segmentLoaded(ts);
+				ts.resetStatus();
+				++segmentsProcessed;
+			}
+
+			if (ts.getStatus() == TimeSegmentStatus.Dirty)
+			{
+				if (verify(ts, esCounts.remove(ts))) // segment becomes either Ok or invalid, or it is oversized (to be split, no need to query CS now)
+				{
+					ts.setVerifiedAt(clock.millis());
+					if (ts.getStatus() == TimeSegmentStatus.Invalid) //when segment transitions from dirty -> invalid, neighbouring segments become dirty
+					{
+						int pushed = load(ts, consumer, stopped, schedule, next);
+						if (pushed < 0)
+						{
+							break; // stopped
+						}
+						log.info("Pushed "+pushed+" events for TS: "+ts);
+						segmentLoaded(ts);
+						ts.resetStatus();
+						flood(ts, ts.getPrevious(), flooded); // Flood 'dirty' to previous
+						flood(ts, ts.getNext(), flooded); // and to next until it is verified by setCheckResult without loading any data.
+					}
+				}
+				++segmentsProcessed;
+			}
+
+			if (sw.elapsed().compareTo(syncMillis) > 0)
+			{
+				break;
+			}
+		}
+
+		return segmentsProcessed;
+	}
+
+	private static void flood(TimeSegment segment, TimeSegment neighbour, Deque<TimeSegment> flooded)
+	{
+		if (!neighbour.equals(segment)) // first and last segments are their own neighbours
+		{
+			neighbour.resetStatus();
+			flooded.add(neighbour);
+		}
+	}
+
+	/**
+	 * Checks Dirty segment, CS count (or digest) runs on the verify thread concurrently with ES queries on this thread,
+	 * so verification takes the longer of the two round trips instead of their sum. CS query is cancelled (stops paging) as soon as
+	 * ES count reaches the sync limit. Returns false if the segment was found oversized without comparing it to CS.
+	 * Routine or approximate (fast) count which would lead to a load is confirmed by an exact count at the strong level first.
+	 * CS count at the sync limit is cut off by the query limit, such segment is split instead of loaded.
+	 */
+	private boolean verify(TimeSegment ts, Integer prefetchedCountEs) throws Exception
+	{
+		if (prefetchedCountEs != null && prefetchedCountEs >= syncLimit)
+		{
+			ts.setCheckResult(prefetchedCountEs, Integer.MAX_VALUE); // it is clear that we need to load some data (and also split segment)
+			return false;
+		}
+
+		boolean routine = scheduler.isRoutine(ts, clock.millis());
+		boolean approximate = !digestVerification && cassandraOps.isCountApproximate(ts);
+		TimeSegment range = ts.range(); // CS query completes on the verify thread, which does not touch the plan
+		CompletableFuture<SegmentDigest> csFuture = queryCs(range, routine, approximate);
+		try
+		{
+			int countEs = (prefetchedCountEs != null)?prefetchedCountEs:elasticOps.countEsData(ts);
+			if (countEs >= syncLimit)
+			{
+				ts.setCheckResult(countEs, Integer.MAX_VALUE);
+				return false;
+			}
+
+			SegmentDigest digestEs = digestVerification?elasticOps.digestEsData(ts):new SegmentDigest(countEs, 0L);
+			SegmentDigest digestCs = await(csFuture);
+			boolean escalated = (routine || approximate) && digestCs.requiresLoad(digestEs);
+			if (escalated)
+			{
+				// cheap count could be stale or could count duplicates, load only what the exact count at the strong level confirms
+				digestCs = await(csFuture = cassandraOps.digestCsDataAsync(range, false, verifyExecutor));
+			}
+			metrics.verification(routine, escalated);
+			if (digestCs.getCount() >= syncLimit)
+			{
+				ts.setCheckResult(countEs, Integer.MAX_VALUE); // index is lagging behind, load would push only the first part of the segment
+				return false;
+			}
+
+			if (digestVerification)
+			{
+				ts.setCheckResult(digestEs, digestCs); // invalid if count or digest does not match
+			}
+			else
+			{
+				ts.setCheckResult(countEs, digestCs.getCount()); // invalid if count does not match
+			}
+			return true;
+		}
+		finally
+		{
+			csFuture.cancel(false); // no-op if completed, otherwise no more pages of the running query are requested
+		}
+	}
+
+	private CompletableFuture<SegmentDigest> queryCs(TimeSegment range, boolean routine, boolean approximate)
+	{
+		if (digestVerification)
+		{
+			return cassandraOps.digestCsDataAsync(range, routine, verifyExecutor);
+		}
+		CompletableFuture<Integer> countCs = cassandraOps.countCsDataAsync(range, routine, approximate, verifyExecutor);
+		return EventStoreOperations.cancelling(countCs, countCs.thenApply(count -> new SegmentDigest(count, 0L))); // cancel stops the count
+	}
+
+	private static <T> T await(CompletableFuture<T> future) throws Exception
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (ExecutionException e)
+		{
+			throw (e.getCause() instanceof Exception)?(Exception)e.getCause():e;
+		}
+	}
+
+	/**
+	 * Loads the segment, with prefetch enabled the next Invalid segment of the schedule (starting at position next) is fetched
+	 * while this one is pushed. Returns number of pushed events or -1 if stopped.
+	 */
+	private int load(TimeSegment ts, Consumer<Map<String, Object>> consumer, BooleanSupplier stopped, List<TimeSegment> schedule, int next) throws Exception
+	{
+		if (prefetch == null)
+		{
+			return cassandraOps.loadCsData(ts, consumer);
+		}
+
+		prefetch.submit(ts, cassandraOps, stopped);
+		for (int i = next; i < Math.min(schedule.size(), next + PREFETCH_LOOKAHEAD); ++i)
+		{
+			if (schedule.get(i).getStatus() == TimeSegmentStatus.Invalid)
+			{
+				prefetch.submit(schedule.get(i), cassandraOps, stopped);
+				break;
+			}
+		}
+		return prefetch.drain(ts, consumer, stopped);
+	}
+
+	/**
+	 * Split points of oversized segments based on ES histogram, so that each is split in one step into parts of about half of the limit.
+	 * Segments without split points are split in the middle.
+	 *
+	 * Segments oversized only in CS (empty or lagging index, e.g. the first segment of the history at startup) are split evenly by time,
+	 * the histogram does not show where the missing events are. CS counts are capped at the limit, so they do not tell the size of parts
+	 * either: such segment is split into CS_SPLIT_PARTS parts per round, log16 instead of log2 rounds of halving.
+	 */
+	private Map<Long, long[]> planSplits(DataSyncPlan plan)
+	{
+		Map<Long, long[]> returnValue = new HashMap<Long, long[]>();
+		for (TimeSegment ts : plan.getOversizedSegments())
+		{
+			if (ts.getElCount() < syncLimit)
+			{
+				returnValue.put(ts.getFromMillis(), evenSplitPoints(ts.getFromMillis(), ts.getToMillis(), CS_SPLIT_PARTS));
+				continue;
+			}
+			try
+			{
+				returnValue.put(ts.getFromMillis(), elasticOps.histogramSplitPoints(ts, Math.max(1, syncLimit/2)));
+			}
+			catch (IOException e)
+			{
+				log.warn("Failed to get histogram of "+ts+", it will be split in the middle.", e);
+			}
+		}
+		return returnValue;
+	}
+
+	/**
+	 * Points splitting [from, to) into the given number of equal parts (fewer for short segments, at least a second each).
+	 */
+	static long[] evenSplitPoints(long from, long to, int parts)
+	{
+		int count = (int)Math.max(1L, Math.min(parts, (to - from) / MIN_SPLIT_MILLIS));
+		long[] returnValue = new long[count-1];
+		for (int i = 1; i < count; ++i)
+		{
+			returnValue[i-1] = from + (to - from) * i / count;
+		}
+		return returnValue;
+	}
+
+	/**
+	 * Restores plan from checkpoint if configured and available, otherwise starts with whole history Dirty.
+	 */
+	private DataSyncPlan createPlan()
+	{
+		if (checkpointFile != null && Files.exists(checkpointFile))
+		{
+			try
+			{
+				DataSyncPlan plan = PlanCheckpoint.load(checkpointFile, loadDepthDays, syncLimit, clock);
+				plan.ShiftToNow();
+				plan.Repartition();
+				log.info("Plan restored from checkpoint "+checkpointFile+" (plan: "+plan+")");
+				return plan;
+			}
+			catch (Exception e)
+			{
+				log.warn("Failed to restore plan from checkpoint "+checkpointFile+", starting from scratch.", e);
+			}
+		}
+		return new DataSyncPlan(loadDepthDays, syncLimit, clock);
+	}
+
+	private void saveCheckpoint(DataSyncPlan plan)
+	{
+		try
+		{
+			PlanCheckpoint.save(plan, checkpointFile);
+		}
+		catch (IOException e)
+		{
+			log.warn("Failed to save plan checkpoint "+checkpointFile, e);
+		}
+	}
+
+	private void closeOperations()
+	{
+		if (elasticOps != null)
+		{
+			try {
+				elasticOps.close();
+			} catch (IOException e1) {
+				log.error("Error while deleting elasticOps", e1);
+			}
+		}
+		elasticOps = null;
+
+		if (cassandraOps != null)
+		{
+			try {
+			cassandraOps.close();
+			} catch (IOException e1) {
+				log.error("Error while deleting cassandraOps", e1);
+			}
+		}
+		cassandraOps = null;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			if (segmentWorkers != null)
+			{
+				segmentWorkers.close();
+			}
+			if (prefetch != null)
+			{
+				prefetch.close();
+			}
+			if (tail != null)
+			{
+				tail.close();
+			}
+			if (verifyExecutor != null)
+			{
+				verifyExecutor.shutdownNow();
+			}
+		}
+		finally
+		{
+			closeOperations();
+		}
+	}
+}
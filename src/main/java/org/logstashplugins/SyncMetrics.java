@@ -0,0 +1,235 @@
+package org.logstashplugins;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import co.elastic.logstash.api.CounterMetric;
+import co.elastic.logstash.api.NamespacedMetric;
+
+/**
+ * Sync metrics reported through the Logstash plugin metrics API (visible in node stats), all methods are no-op if metrics are not available.
+ *
+ * Metrics API has only counters, gauges and timers, request latency histograms are therefore reported as counters of requests
+ * per latency bucket (latency_le_1ms ... latency_le_5000ms, latency_gt_5000ms) next to the total request time.
+ */
+public final class SyncMetrics
+{
+	private static final long[] LATENCY_BUCKETS_MS = { 1L, 5L, 10L, 50L, 100L, 500L, 1000L, 5000L };
+
+	/**
+	 * Metrics of one request type (e.g. cassandra/load).
+	 */
+	private static final class RequestMetrics
+	{
+		private final NamespacedMetric metric;
+		private final CounterMetric requests;
+		private final CounterMetric failures;
+		private final CounterMetric[] latencyBuckets = new CounterMetric[LATENCY_BUCKETS_MS.length+1];
+
+		RequestMetrics(NamespacedMetric aMetric)
+		{
+			metric = aMetric;
+			requests = metric.counter("requests");
+			failures = metric.counter("failures");
+			for (int i = 0; i < LATENCY_BUCKETS_MS.length; ++i)
+			{
+				latencyBuckets[i] = metric.counter("latency_le_"+LATENCY_BUCKETS_MS[i]+"ms");
+			}
+			latencyBuckets[LATENCY_BUCKETS_MS.length] = metric.counter("latency_gt_"+LATENCY_BUCKETS_MS[LATENCY_BUCKETS_MS.length-1]+"ms");
+		}
+
+		void record(long latencyNanos, boolean failed)
+		{
+			long latencyMillis = TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+			int bucket = 0;
+			while (bucket < LATENCY_BUCKETS_MS.length && latencyMillis > LATENCY_BUCKETS_MS[bucket])
+			{
+				++bucket;
+			}
+
+			requests.increment();
+			latencyBuckets[bucket].increment();
+			metric.reportTime("duration_in_millis", latencyMillis);
+			if (failed)
+			{
+				failures.increment();
+			}
+		}
+	}
+
+	private final NamespacedMetric metric; // null if metrics are not available
+
+	private final CounterMetric eventsPushed;
+
+	private final CounterMetric duplicates;
+
+	private final CounterMetric budgetExhausted;
+
+	private final CounterMetric tailPushed;
+
+	private final CounterMetric[] verifications; // strong, routine, escalated
+
+	private final CounterMetric cachedVerifications;
+
+	private final ConcurrentMap<String, RequestMetrics> requestMetrics = new ConcurrentHashMap<String, RequestMetrics>();
+
+	private long lastRateNanos = System.nanoTime();
+
+	private long lastRatePushed = 0L;
+
+	public SyncMetrics(NamespacedMetric aMetric)
+	{
+		this.metric = aMetric;
+		this.eventsPushed = (metric != null)?metric.namespace("events").counter("pushed"):null;
+		this.duplicates = (metric != null)?metric.namespace("events").counter("duplicates"):null;
+		this.budgetExhausted = (metric != null)?metric.namespace("rounds").counter("budget_exhausted"):null;
+		this.tailPushed = (metric != null)?metric.namespace("tail").counter("pushed"):null;
+		this.verifications = (metric != null)?new CounterMetric[] { metric.namespace("verify").counter("strong"), metric.namespace("verify").counter("routine"),
+																	metric.namespace("verify").counter("escalated") }:null;
+		this.cachedVerifications = (metric != null)?metric.namespace("verify").counter("cached"):null;
+	}
+
+	public void eventsPushed(int count)
+	{
+		if (eventsPushed != null && count > 0)
+		{
+			eventsPushed.increment(count);
+		}
+	}
+
+	public void duplicatesFound(int count)
+	{
+		if (duplicates != null && count > 0)
+		{
+			duplicates.increment(count);
+		}
+	}
+
+	public void cassandraRequest(String type, long latencyNanos, boolean failed)
+	{
+		request("cassandra", type, latencyNanos, failed);
+	}
+
+	/**
+	 * Records ES request started at startNanos (System.nanoTime).
+	 */
+	public void elasticRequest(String type, long startNanos, boolean failed)
+	{
+		request("elasticsearch", type, System.nanoTime() - startNanos, failed);
+	}
+
+	private void request(String store, String type, long latencyNanos, boolean failed)
+	{
+		if (metric != null)
+		{
+			requestMetrics.computeIfAbsent(store+"/"+type, k -> new RequestMetrics(metric.namespace("requests", store, type))).record(latencyNanos, failed);
+		}
+	}
+
+	/**
+	 * Records time spent in a phase of the sync loop started at startNanos (System.nanoTime), returns current time as start of the next phase.
+	 */
+	public long phase(String name, long startNanos)
+	{
+		long now = System.nanoTime();
+		if (metric != null)
+		{
+			metric.namespace("phases").reportTime(name, TimeUnit.NANOSECONDS.toMillis(now - startNanos));
+		}
+		return now;
+	}
+
+	/**
+	 * Counts verification of a segment by the consistency level of its CS count, escalated (routine or fast) counts were repeated
+	 * as exact counts at the strong level.
+	 */
+	public void verification(boolean routine, boolean escalated)
+	{
+		if (verifications != null)
+		{
+			verifications[routine?1:0].increment();
+			if (escalated)
+			{
+				verifications[2].increment();
+			}
+		}
+	}
+
+	/**
+	 * Counts verifications answered by the count cache, entries is the number of cached results.
+	 */
+	public void countCache(int hits, int entries)
+	{
+		if (metric == null)
+		{
+			return;
+		}
+
+		if (hits > 0)
+		{
+			cachedVerifications.increment(hits);
+		}
+		metric.namespace("verify").gauge("cache_entries", entries);
+	}
+
+	/**
+	 * Reports a tail poll, lag is the time since the tail watermark (how old events could be still missing).
+	 */
+	public void tailPolled(int pushed, long lagMillis)
+	{
+		if (metric == null)
+		{
+			return;
+		}
+
+		if (pushed > 0)
+		{
+			tailPushed.increment(pushed); // included in events pushed by the event store as well
+		}
+		metric.namespace("tail").gauge("lag_millis", lagMillis);
+	}
+
+	/**
+	 * Reports segments left Dirty or Invalid by a round which ran out of the sync period (0 if the round was not cut short).
+	 */
+	public void deferredSegments(int count)
+	{
+		if (metric == null)
+		{
+			return;
+		}
+
+		metric.namespace("segments").gauge("deferred", count);
+		if (count > 0)
+		{
+			budgetExhausted.increment();
+		}
+	}
+
+	/**
+	 * Reports segments by status and events pushed per second since the previous call.
+	 */
+	public synchronized void roundFinished(DataSyncPlan plan)
+	{
+		if (metric == null)
+		{
+			return;
+		}
+
+		NamespacedMetric segments = metric.namespace("segments");
+		segments.gauge("total", plan.getTotalCount());
+		segments.gauge("dirty", plan.getDirtyCount());
+		segments.gauge("invalid", plan.getInvalidCount());
+		segments.gauge("ok", plan.getOkCount());
+
+		long now = System.nanoTime();
+		long pushed = eventsPushed.getValue();
+		if (now > lastRateNanos)
+		{
+			metric.namespace("events").gauge("pushed_per_second", (pushed - lastRatePushed) * 1000000000.0 / (now - lastRateNanos));
+		}
+		lastRateNanos = now;
+		lastRatePushed = pushed;
+	}
+}
@@ -0,0 +1,198 @@
+package org.logstashplugins;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Catalog of tag combinations (Cassandra partitions) passing the inclusive tags expression.
+ *
+ * Discovery (SELECT DISTINCT tags) is expensive, so it runs on its own schedule in a background thread and the sync loop
+ * only reads the latest immutable snapshot. Each distinct combination is evaluated against the expression only once.
+ * Refresh requests arriving while a refresh is running are merged into a single follow-up refresh.
+ */
+public final class TagCombinationCatalog implements Closeable
+{
+	/**
+	 * Immutable view of included combinations, version changes whenever the content changes.
+	 */
+	public static final class Snapshot
+	{
+		private final List<Set<String>> combinations;
+		private final long version;
+
+		private Snapshot(List<Set<String>> aCombinations, long aVersion)
+		{
+			this.combinations = Collections.unmodifiableList(aCombinations);
+			this.version = aVersion;
+		}
+
+		public List<Set<String>> getCombinations() { return combinations; }
+
+		public long getVersion() { return version; }
+
+		public int size() { return combinations.size(); }
+	}
+
+	private final TagExpression expression;
+
+	private final Callable<List<Set<String>>> scanner;
+
+	private final Logger log;
+
+	private final Map<Set<String>, Boolean> evaluated = new HashMap<Set<String>, Boolean>(); // accessed only by refresh (serialized)
+
+	private final AtomicBoolean refreshRunning = new AtomicBoolean(false);
+
+	private final AtomicBoolean refreshRequested = new AtomicBoolean(false);
+
+	private final Object refreshLock = new Object();
+
+	private volatile Snapshot snapshot = new Snapshot(new ArrayList<Set<String>>(), 0L);
+
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * @param aTagsIncl inclusive tags expression
+	 * @param aScanner returns all distinct tag combinations present in the event store
+	 */
+	public TagCombinationCatalog(String aTagsIncl, Callable<List<Set<String>>> aScanner, Logger aLog)
+	{
+		this.expression = TagExpression.compile(aTagsIncl);
+		this.scanner = aScanner;
+		this.log = aLog;
+	}
+
+	public Snapshot getSnapshot()
+	{
+		return snapshot;
+	}
+
+	/**
+	 * Refreshes catalog on the calling thread, used for the initial load.
+	 */
+	public void refresh() throws Exception
+	{
+		synchronized (refreshLock)
+		{
+			doRefresh();
+		}
+
+		if (snapshot.size() == 0) // there must be at least one combination included and this must be refreshed regularly
+		{
+			throw new Exception("No matching tag combinations found passing the specified list.");
+		}
+	}
+
+	/**
+	 * Starts periodic background refresh.
+	 */
+	public synchronized void start(long aPeriodSeconds)
+	{
+		if (scheduler == null)
+		{
+			scheduler = Executors.newSingleThreadScheduledExecutor(r ->
+			{
+				Thread t = new Thread(r, "cassandra_sync-tag-catalog");
+				t.setDaemon(true);
+				return t;
+			});
+			scheduler.scheduleWithFixedDelay(this::requestRefresh, aPeriodSeconds, aPeriodSeconds, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Non-blocking refresh request, merged with a refresh already in progress or waiting.
+	 */
+	public synchronized void requestRefresh()
+	{
+		refreshRequested.set(true);
+		if (scheduler != null && refreshRunning.compareAndSet(false, true))
+		{
+			scheduler.execute(this::runRequestedRefreshes);
+		}
+	}
+
+	private void runRequestedRefreshes()
+	{
+		try
+		{
+			while (refreshRequested.getAndSet(false))
+			{
+				synchronized (refreshLock)
+				{
+					doRefresh();
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			log.error("Failed to refresh tag combinations, keeping previous "+snapshot.size()+" combinations.", e);
+		}
+		finally
+		{
+			synchronized (this)
+			{
+				refreshRunning.set(false);
+				if (refreshRequested.get()) // request arrived after the last refresh has started
+				{
+					requestRefresh();
+				}
+			}
+		}
+	}
+
+	private void doRefresh() throws Exception
+	{
+		List<Set<String>> included = new ArrayList<Set<String>>();
+		int newlyEvaluated = 0;
+		for (Set<String> tags : scanner.call())
+		{
+			Boolean passes = evaluated.get(tags);
+			if (passes == null)
+			{
+				passes = expression.evaluate(tags);
+				evaluated.put(tags, passes);
+				++newlyEvaluated;
+			}
+
+			if (passes)
+			{
+				included.add(tags);
+			}
+		}
+
+		Snapshot current = snapshot;
+		if (included.size() == 0 && current.size() > 0)
+		{
+			log.warn("No matching tag combinations found passing the specified list, keeping previous "+current.size()+" combinations.");
+		}
+		else if (!included.equals(current.getCombinations()))
+		{
+			snapshot = new Snapshot(included, current.getVersion()+1);
+			log.info("Tag combinations refreshed, "+included.size()+" included ("+newlyEvaluated+" newly evaluated).");
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (scheduler != null)
+		{
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+}
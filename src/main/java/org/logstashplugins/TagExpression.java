@@ -0,0 +1,266 @@
+package org.logstashplugins;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compiled form of the 'inclusivetags' expression.
+ *
+ * Grammar (same as the former script based evaluation): quoted ('tag') and bare (tag) tags, literals 0 and 1,
+ * unary '!', binary '&&' and '||' (with '&&' binding stronger) and parentheses.
+ *
+ * Expression is parsed only once, tags referenced by the expression are interned into a small dictionary and
+ * every evaluated tag combination is projected into a bitset of referenced tags. Results are cached per projection,
+ * so evaluating many distinct tag combinations costs one dictionary lookup per tag.
+ */
+public final class TagExpression
+{
+	private static final int MAX_COMPILED_EXPRESSIONS = 64; // a plugin uses a single expression, the cache is cleared when exceeded
+
+	private static final Map<String, TagExpression> compiledExpressions = new ConcurrentHashMap<String, TagExpression>();
+
+	private final String expression;
+
+	private final Map<String, Integer> tagDictionary = new HashMap<String, Integer>();
+
+	private final Map<BitSet, Boolean> resultCache = new ConcurrentHashMap<BitSet, Boolean>();
+
+	private final Node root;
+
+	private TagExpression(String aExpression) throws IllegalArgumentException
+	{
+		this.expression = aExpression;
+		this.root = new Parser(aExpression).parse();
+	}
+
+	/**
+	 * Parses the expression, throws IllegalArgumentException if it does not follow the grammar.
+	 * Compiled expressions are cached (up to MAX_COMPILED_EXPRESSIONS of them), invalid ones are not.
+	 */
+	public static TagExpression compile(String aExpression) throws IllegalArgumentException
+	{
+		if (compiledExpressions.size() >= MAX_COMPILED_EXPRESSIONS && !compiledExpressions.containsKey(aExpression))
+		{
+			compiledExpressions.clear();
+		}
+		return compiledExpressions.computeIfAbsent(aExpression, TagExpression::new);
+	}
+
+	public String getExpression()
+	{
+		return expression;
+	}
+
+	public boolean evaluate(Set<String> eventTags)
+	{
+		BitSet present = new BitSet(tagDictionary.size());
+		for (String tag : eventTags)
+		{
+			Integer tagIndex = tagDictionary.get(tag);
+			if (tagIndex != null)
+			{
+				present.set(tagIndex);
+			}
+		}
+
+		Boolean result = resultCache.get(present);
+		if (result == null)
+		{
+			result = root.evaluate(present);
+			resultCache.put(present, result);
+		}
+		return result;
+	}
+
+	private int intern(String tag)
+	{
+		Integer tagIndex = tagDictionary.get(tag);
+		if (tagIndex == null)
+		{
+			tagIndex = tagDictionary.size();
+			tagDictionary.put(tag, tagIndex);
+		}
+		return tagIndex;
+	}
+
+	private interface Node
+	{
+		boolean evaluate(BitSet present);
+	}
+
+	private static final class Constant implements Node
+	{
+		private final boolean value;
+		Constant(boolean aValue) { value = aValue; }
+		@Override public boolean evaluate(BitSet present) { return value; }
+	}
+
+	private static final class Tag implements Node
+	{
+		private final int tagIndex;
+		Tag(int aTagIndex) { tagIndex = aTagIndex; }
+		@Override public boolean evaluate(BitSet present) { return present.get(tagIndex); }
+	}
+
+	private static final class Not implements Node
+	{
+		private final Node operand;
+		Not(Node aOperand) { operand = aOperand; }
+		@Override public boolean evaluate(BitSet present) { return !operand.evaluate(present); }
+	}
+
+	private static final class And implements Node
+	{
+		private final Node left, right;
+		And(Node aLeft, Node aRight) { left = aLeft; right = aRight; }
+		@Override public boolean evaluate(BitSet present) { return left.evaluate(present) && right.evaluate(present); }
+	}
+
+	private static final class Or implements Node
+	{
+		private final Node left, right;
+		Or(Node aLeft, Node aRight) { left = aLeft; right = aRight; }
+		@Override public boolean evaluate(BitSet present) { return left.evaluate(present) || right.evaluate(present); }
+	}
+
+	/**
+	 * Recursive descent parser: or := and ('||' and)*, and := unary ('&&' unary)*, unary := '!' unary | primary.
+	 */
+	private final class Parser
+	{
+		private final String text;
+		private int pos = 0;
+
+		Parser(String aText)
+		{
+			text = aText;
+		}
+
+		Node parse()
+		{
+			Node result = parseOr();
+			skipWhitespace();
+			if (pos < text.length())
+			{
+				throw error("unexpected character '"+text.charAt(pos)+"'");
+			}
+			return result;
+		}
+
+		private Node parseOr()
+		{
+			Node left = parseAnd();
+			while (consume("||"))
+			{
+				left = new Or(left, parseAnd());
+			}
+			return left;
+		}
+
+		private Node parseAnd()
+		{
+			Node left = parseUnary();
+			while (consume("&&"))
+			{
+				left = new And(left, parseUnary());
+			}
+			return left;
+		}
+
+		private Node parseUnary()
+		{
+			skipWhitespace();
+			if (pos < text.length() && text.charAt(pos) == '!')
+			{
+				++pos;
+				return new Not(parseUnary());
+			}
+			return parsePrimary();
+		}
+
+		private Node parsePrimary()
+		{
+			skipWhitespace();
+			if (pos >= text.length())
+			{
+				throw error("unexpected end of expression");
+			}
+
+			char c = text.charAt(pos);
+			if (c == '(')
+			{
+				++pos;
+				Node inner = parseOr();
+				if (!consume(")"))
+				{
+					throw error("missing ')'");
+				}
+				return inner;
+			}
+			else if (c == '\'')
+			{
+				int end = text.indexOf('\'', pos+1);
+				if (end < 0)
+				{
+					throw error("unterminated quoted tag");
+				}
+				String tag = text.substring(pos+1, end);
+				pos = end+1;
+				return new Tag(intern(tag));
+			}
+			else if (c == '0' || c == '1')
+			{
+				++pos;
+				return new Constant(c == '1');
+			}
+			else if (isTagStart(c))
+			{
+				int start = pos;
+				while (pos < text.length() && isTagPart(text.charAt(pos)))
+				{
+					++pos;
+				}
+				return new Tag(intern(text.substring(start, pos)));
+			}
+
+			throw error("unexpected character '"+c+"'");
+		}
+
+		private boolean consume(String token)
+		{
+			skipWhitespace();
+			if (text.startsWith(token, pos))
+			{
+				pos += token.length();
+				return true;
+			}
+			return false;
+		}
+
+		private void skipWhitespace()
+		{
+			while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+			{
+				++pos;
+			}
+		}
+
+		private boolean isTagStart(char c)
+		{
+			return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == '+' || c == '#' || c == '-';
+		}
+
+		private boolean isTagPart(char c)
+		{
+			return isTagStart(c) || (c >= '0' && c <= '9');
+		}
+
+		private IllegalArgumentException error(String message)
+		{
+			return new IllegalArgumentException("Invalid tag expression '"+text+"' at position "+pos+": "+message);
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package org.logstashplugins;
+
+import java.io.Closeable;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Low latency tail of the event store, polls the most recent events at a short interval (independent of the sync period)
+ * and pushes them right away. The plan loop stays as the reconciliation pass for anything the tail misses.
+ *
+ * Watermark is the 'created' time up to which polls returned complete results. Every poll reads from watermark minus overlap
+ * (events written late with slightly older 'created') up to now, events pushed by previous polls are skipped by UID.
+ * Poll hitting the fetch limit (by rows read, duplicates included) does not advance the watermark, the window of next polls is halved
+ * until results are complete.
+ *
+ * Tail reads through the operations of the sync loop (same session, prepared statements and tag combinations), polls are skipped
+ * while the loop is not connected.
+ */
+public final class TailFetcher implements Closeable
+{
+	private static final long MAX_WINDOW_MILLIS = 60000L; // catch up after a pause in steps of at most a minute
+
+	private static final long MIN_WINDOW_MILLIS = 100L;
+
+	private final long intervalMillis;
+	private final long overlapMillis;
+	private final int fetchLimit;
+	private final Supplier<EventStoreOperations> cassandraOps; // current operations of the sync loop, null while not connected
+	private final Clock clock;
+	private final SyncMetrics metrics;
+	private final Logger log;
+
+	private final ScheduledExecutorService executor;
+	private final Map<String, Long> pushedUids = new HashMap<String, Long>(); // UID -> created of events pushed within the overlap
+	private long watermark;
+	private long windowMillis = MAX_WINDOW_MILLIS;
+
+	public TailFetcher(Duration aInterval, Duration aOverlap, int aFetchLimit, Supplier<EventStoreOperations> aCassandraOps, Clock aClock, SyncMetrics aMetrics, Logger aLog)
+	{
+		this.intervalMillis = Math.max(1L, aInterval.toMillis());
+		this.overlapMillis = Math.max(0L, aOverlap.toMillis());
+		this.fetchLimit = aFetchLimit;
+		this.cassandraOps = aCassandraOps;
+		this.clock = aClock;
+		this.metrics = aMetrics;
+		this.log = aLog;
+		this.watermark = aClock.millis(); // history is left to the plan loop
+		this.executor = Executors.newSingleThreadScheduledExecutor(r ->
+		{
+			Thread t = new Thread(r, "cassandra_sync-tail");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Starts polling in background until stopped or closed.
+	 */
+	public void start(Consumer<Map<String, Object>> consumer, BooleanSupplier stopped)
+	{
+		executor.scheduleWithFixedDelay(() ->
+		{
+			if (stopped.getAsBoolean())
+			{
+				executor.shutdown();
+				return;
+			}
+			try
+			{
+				poll(consumer);
+			}
+			catch (Exception e)
+			{
+				log.warn("Tail poll failed, events are going to be picked up by the next poll or the sync loop.", e); // operations are recovered by the sync loop
+			}
+		}, 0L, intervalMillis, TimeUnit.MILLISECONDS);
+		log.info("Tail polling every "+intervalMillis+"ms started at "+Instant.ofEpochMilli(watermark));
+	}
+
+	public long getWatermark()
+	{
+		return watermark;
+	}
+
+	/**
+	 * Reads events from the watermark (minus overlap) up to now, returns number of newly pushed events.
+	 */
+	int poll(Consumer<Map<String, Object>> consumer) throws Exception
+	{
+		EventStoreOperations ops = cassandraOps.get();
+		if (ops == null)
+		{
+			return 0; // sync loop is not connected yet
+		}
+
+		long now = clock.millis();
+		long from = watermark - overlapMillis;
+		long to = Math.min(now, watermark + windowMillis);
+		if (to <= from)
+		{
+			return 0;
+		}
+
+		int[] pushed = { 0 };
+		int rows = ops.loadCsDataRows(new TimeSegment(from, to), event ->
+		{
+			Object created = event.get("created");
+			if (pushedUids.putIfAbsent((String)event.get("uid"), (created != null)?Instant.parse((String)created).toEpochMilli():to) == null)
+			{
+				consumer.accept(event);
+				++pushed[0];
+			}
+		});
+
+		if (rows < fetchLimit)
+		{
+			watermark = to;
+			windowMillis = Math.min(MAX_WINDOW_MILLIS, windowMillis*2);
+		}
+		else if (windowMillis > MIN_WINDOW_MILLIS)
+		{
+			windowMillis = Math.max(MIN_WINDOW_MILLIS, windowMillis/2); // retry the same start with narrower window
+		}
+		else
+		{
+			log.warn("Tail poll of "+Instant.ofEpochMilli(from)+" - "+Instant.ofEpochMilli(to)+" hit the limit of "+fetchLimit+" events, the rest is left to the sync loop.");
+			watermark = to;
+		}
+
+		for (Iterator<Long> it = pushedUids.values().iterator(); it.hasNext();)
+		{
+			if (it.next() < watermark - overlapMillis) // not going to be read again
+			{
+				it.remove();
+			}
+		}
+
+		metrics.tailPolled(pushed[0], now - watermark);
+		return pushed[0];
+	}
+
+	@Override
+	public void close()
+	{
+		executor.shutdownNow();
+		try
+		{
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
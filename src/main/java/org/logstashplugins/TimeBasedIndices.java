@@ -0,0 +1,74 @@
+package org.logstashplugins;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoField;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * Naming of time-based indices (e.g. eventstore-iot-2020.01.31 for date format yyyy.MM.dd), resolves the time period
+ * covered by an index from the date suffix of its name. Dates are in UTC, as written by the Logstash ES output.
+ * Supported periods are hours, days, months and years, given by the smallest field of the format.
+ */
+final class TimeBasedIndices
+{
+	private final DateTimeFormatter format;
+
+	private final int suffixLength;
+
+	private final ChronoUnit unit;
+
+	TimeBasedIndices(String aDateFormat)
+	{
+		this.format = new DateTimeFormatterBuilder().appendPattern(aDateFormat)
+													.parseDefaulting(ChronoField.MONTH_OF_YEAR, 1)
+													.parseDefaulting(ChronoField.DAY_OF_MONTH, 1)
+													.parseDefaulting(ChronoField.HOUR_OF_DAY, 0)
+													.toFormatter();
+		this.suffixLength = format.format(LocalDateTime.of(2000, 1, 1, 0, 0)).length(); // numeric formats have fixed width
+		if (aDateFormat.contains("H"))
+		{
+			unit = ChronoUnit.HOURS;
+		}
+		else if (aDateFormat.contains("d"))
+		{
+			unit = ChronoUnit.DAYS;
+		}
+		else if (aDateFormat.contains("M"))
+		{
+			unit = ChronoUnit.MONTHS;
+		}
+		else if (aDateFormat.contains("y") || aDateFormat.contains("u"))
+		{
+			unit = ChronoUnit.YEARS;
+		}
+		else
+		{
+			throw new IllegalArgumentException("Index date format '"+aDateFormat+"' has no hour, day, month or year field.");
+		}
+	}
+
+	/**
+	 * Returns [from, to) epoch millis of events held by the index, null if the name does not end with a date of the format.
+	 */
+	long[] period(String indexName)
+	{
+		if (indexName.length() < suffixLength)
+		{
+			return null;
+		}
+
+		try
+		{
+			LocalDateTime from = LocalDateTime.parse(indexName.substring(indexName.length() - suffixLength), format);
+			return new long[] { from.toInstant(ZoneOffset.UTC).toEpochMilli(), from.plus(1, unit).toInstant(ZoneOffset.UTC).toEpochMilli() };
+		}
+		catch (DateTimeParseException e)
+		{
+			return null;
+		}
+	}
+}
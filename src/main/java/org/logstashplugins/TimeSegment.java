@@ -2,146 +2,175 @@ package org.logstashplugins;
 
 import java.time.Instant;
 
+/**
+ * Time segment, either a view of a row in SegmentTable or a standalone range. Segments of a plan are views of the plan table (valid until
+ * the plan is repartitioned or shifted), views of the same row are equal. Standalone segments (e.g. query ranges) are immutable bounds
+ * without any check state (Dirty, never verified), ranges of the same bounds are equal.
+ *
+ * Work running outside of the thread owning the plan gets ranges (see range), its results are applied to plan rows found by bounds.
+ */
 public final class TimeSegment
-{	
-	private long from;
-	
-	private long to;
-	
-	private TimeSegmentStatus status;
-	public TimeSegmentStatus getStatus() { return status; }
+{
+	private final SegmentTable table; // null = standalone range
 
-	private int elCount;
-	public int getElCount() { return elCount; }
+	private final int index;
 
-	private int csCount;
-	public int getCsCount() { return csCount; }
-	
-	private TimeSegment next = this;
-	public TimeSegment getNext() { return next;	}
+	private final long from; // bounds of a standalone range
 
-	private TimeSegment previous = this;
-	public TimeSegment getPrevious() { return previous; }
-	public void setPrevious(TimeSegment previous)
-	{ 
-		this.previous = previous;
-		previous.next = this;
-	}
+	private final long to;
+
+	public TimeSegmentStatus getStatus() { return (table == null)?TimeSegmentStatus.Dirty:SegmentTable.toStatus(table.status[index]); }
+
+	public int getElCount() { return (table == null)?0:table.elCount[index]; }
+
+	public int getCsCount() { return (table == null)?0:table.csCount[index]; }
+
+	public long getElDigest() { return (table == null)?0L:table.elDigest[index]; }
+
+	public boolean isDigestKnown() { return table != null && table.digestKnown[index]; }
+
+	public long getVerifiedAt() { return (table == null)?0L:table.verifiedAt[index]; }
+
+	public void setVerifiedAt(long aMillis) { row().verifiedAt[index] = aMillis; }
 
-	public TimeSegment(long aFrom, long aTo)	
+	// mismatches within the last 8 checks
+	public int getMismatchCount() { return (table == null)?0:table.mismatchCount(index); }
+
+	// first and last segments are their own neighbours, so is a standalone range
+	public TimeSegment getNext() { return (table != null && index+1 < table.size)?new TimeSegment(table, index+1):this; }
+
+	public TimeSegment getPrevious() { return (table != null && index > 0)?new TimeSegment(table, index-1):this; }
+
+	public TimeSegment(long aFrom, long aTo)
 	{
+		table = null;
+		index = -1;
 		from = aFrom;
 		to = aTo;
-		status = TimeSegmentStatus.Dirty;
-		elCount = 0;
-		csCount = 0;
 	}
-	
-	public void setCheckResult(int aElCount, int aCsCount)
-	{
-		this.csCount = aCsCount;
-		this.elCount = aElCount;
-		this.status = (aCsCount <= aElCount)?TimeSegmentStatus.Ok:TimeSegmentStatus.Invalid;
-	}
-	
-	public void resetStatus()
+
+	TimeSegment(SegmentTable aTable, int aIndex)
 	{
-		status = TimeSegmentStatus.Dirty;
-		elCount = 0;
-		csCount = 0;
+		table = aTable;
+		index = aIndex;
+		from = 0L;
+		to = 0L;
 	}
-	
-	public void Merge(TimeSegment other) throws Exception
+
+	/**
+	 * Table of a plan segment, check state could not be set on a standalone range.
+	 */
+	private SegmentTable row()
 	{
-		if (this.status == TimeSegmentStatus.Ok && other.status == TimeSegmentStatus.Ok)
+		if (table == null)
 		{
-			if (this.to == other.from) // this extends into future
-			{
-				this.to = other.to;				
-			}
-			else if (this.from == other.to) // this extends into past
-			{
-				this.from = other.from;				
-			}
-			else
-			{
-				throw new Exception("Invalid Merge, cannot merge non-adjacent segments.");
-			}	
-			
-			this.csCount += other.csCount;
-			this.elCount += other.elCount;
-		}
-		else
-		{
-			throw new Exception("Invalid Merge, cannot merge non-Ok statuses.");
+			throw new UnsupportedOperationException("Segment "+this+" is a standalone range without check state.");
 		}
+		return table;
 	}
-		
+
 	/**
-	 * Split segment in place (in the middle) and return latter part.
-	 * 
-	 * @return
-	 * @throws Exception
+	 * Standalone range of the current bounds of this segment (this if it is a range already).
 	 */
-	public TimeSegment Split() throws Exception
-	{
-		long splitPoint = (from+to)/2L;
-		TimeSegment latterPart = new TimeSegment(splitPoint, this.to);
-		this.to = splitPoint;
-		this.status = TimeSegmentStatus.Dirty; // invalid splits to -> Dirty as well
-		this.csCount = 0;
-		this.elCount = 0;
-		
-		return latterPart;
-	}
-	
+	public TimeSegment range()
+	{
+		return (table == null)?this:new TimeSegment(getFromMillis(), getToMillis());
+	}
+
+	public boolean hasBounds(TimeSegment other)
+	{
+		return getFromMillis() == other.getFromMillis() && getToMillis() == other.getToMillis();
+	}
+
+	public void setCheckResult(int aElCount, int aCsCount)
+	{
+		SegmentTable t = row();
+		t.csCount[index] = aCsCount;
+		t.elCount[index] = aElCount;
+		t.digestKnown[index] = false;
+		t.status[index] = SegmentTable.toByte((aCsCount <= aElCount)?TimeSegmentStatus.Ok:TimeSegmentStatus.Invalid);
+		t.recordCheck(index, aCsCount > aElCount);
+	}
+
 	/**
-	 * Clip oldest part of interval by supplied time point, works only if not whole TimeSegment would be clipped (it has to be removed completely in that case).
-	 * @param aNewFrom
+	 * Digest verification, segment is Invalid also when counts are equal, but events differ.
 	 */
-	public void ClipBy(long aNewFrom)	
+	public void setCheckResult(SegmentDigest aElDigest, SegmentDigest aCsDigest)
 	{
-		if (this.to >= aNewFrom && this.from < aNewFrom)
+		setCheckResult(aElDigest.getCount(), aCsDigest.getCount());
+		if (aElDigest.getCount() == aCsDigest.getCount() && aElDigest.getDigest() != aCsDigest.getDigest())
 		{
-			this.from = aNewFrom;
-			this.csCount = 0;
-			this.elCount = 0;
-			this.status = TimeSegmentStatus.Dirty;
-		}				
+			table.status[index] = SegmentTable.toByte(TimeSegmentStatus.Invalid);
+			table.mismatches[index] |= 1; // latest check is a mismatch after all
+		}
+		table.elDigest[index] = aElDigest.getDigest();
+		table.digestKnown[index] = (getStatus() == TimeSegmentStatus.Ok);
+	}
+
+	public void resetStatus()
+	{
+		row().resetStatus(index);
 	}
-	
+
+	public long getFromMillis()
+	{
+		return (table == null)?from:table.from[index];
+	}
+
+	public long getToMillis()
+	{
+		return (table == null)?to:table.to[index];
+	}
+
 	public Instant getFromTsInstant()
 	{
-		return Instant.ofEpochMilli(from);
+		return Instant.ofEpochMilli(getFromMillis());
 	}
-	
+
 	public Instant getToTsInstant()
 	{
-		return Instant.ofEpochMilli(to);
+		return Instant.ofEpochMilli(getToMillis());
 	}
-	
+
 	public String getFromTs()
 	{
 		return getFromTsInstant().toString();
 	}
-	
+
 	public String getToTs()
 	{
 		return getToTsInstant().toString();
 	}
-	
-	public boolean couldMerge(TimeSegment timeSegment, int maximumSegmentRecords)
+
+	@Override
+	public boolean equals(Object obj)
 	{
-		return ((this.to == timeSegment.from) &&
-				(this.status == TimeSegmentStatus.Ok) &&
-				(timeSegment.status == TimeSegmentStatus.Ok)  &&
-				(this.elCount + timeSegment.elCount < maximumSegmentRecords));
+		if (!(obj instanceof TimeSegment))
+		{
+			return false;
+		}
+		TimeSegment other = (TimeSegment)obj;
+		if (table == null)
+		{
+			return other.table == null && from == other.from && to == other.to;
+		}
+		return table == other.table && index == other.index;
 	}
-	
+
+	@Override
+	public int hashCode()
+	{
+		return (table == null)?31*Long.hashCode(from) + Long.hashCode(to):31*System.identityHashCode(table) + index;
+	}
+
 	@Override
 	public String toString()
 	{
-		return "[status: "+status+", "+getFromTsInstant()+" -to- "+getToTsInstant()+", count Elastic: " + getElCount() + ", count Cassandra: " + getCsCount()+"]";
+		if (table == null)
+		{
+			return "["+getFromTsInstant()+" -to- "+getToTsInstant()+"]";
+		}
+		return "[status: "+getStatus()+", "+getFromTsInstant()+" -to- "+getToTsInstant()+", count Elastic: " + getElCount() + ", count Cassandra: " + getCsCount()+"]";
 	}
 
 }
@@ -0,0 +1,119 @@
+package org.logstashplugins;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.Logger;
+
+/**
+ * One-shot initial load of the whole history into an empty index: the event store is scanned by token ranges in parallel
+ * (see EventStoreOperations.scanCsData) instead of halving the plan until its segments fit the sync limit.
+ *
+ * Pushed events are counted in a histogram of 'created' over the plan window, the histogram becomes a segment table
+ * with every bucket Ok (index count = store count = pushed events). Repartition merges the buckets into segments under
+ * the sync limit, buckets over the limit are split as usual. Segments are left as never verified, so the scheduler
+ * re-verifies them first.
+ */
+final class TokenRangeBackfill
+{
+	private static final int MAX_BUCKETS = 1 << 16;
+
+	private static final long MIN_BUCKET_MILLIS = 1000L;
+
+	private final int parallelism;
+	private final int minParts;
+	private final Logger log;
+
+	TokenRangeBackfill(int aParallelism, int aMinParts, Logger aLog)
+	{
+		this.parallelism = Math.max(1, aParallelism);
+		this.minParts = Math.max(1, aMinParts);
+		this.log = aLog;
+	}
+
+	/**
+	 * Pushes all events of the window to the consumer, returns segments of the window with their counts (all Ok),
+	 * or null if stopped before the scan finished.
+	 */
+	SegmentTable run(TimeSegment window, EventStoreOperations cassandraOps, Consumer<Map<String, Object>> consumer, BooleanSupplier stopped) throws Exception
+	{
+		long from = window.getFromMillis();
+		long to = window.getToMillis();
+		long bucketMillis = Math.max(MIN_BUCKET_MILLIS, (to - from + MAX_BUCKETS - 1) / MAX_BUCKETS);
+		AtomicIntegerArray histogram = new AtomicIntegerArray((int)Math.max(1L, (to - from + bucketMillis - 1) / bucketMillis));
+
+		List<Callable<Integer>> parts = cassandraOps.scanCsData(window, minParts, event ->
+		{
+			if (stopped.getAsBoolean())
+			{
+				throw new CancellationException("Backfill cancelled.");
+			}
+			long created = Instant.parse((String)event.get("created")).toEpochMilli();
+			histogram.incrementAndGet((int)Math.min(histogram.length()-1, Math.max(0L, created - from) / bucketMillis));
+			consumer.accept(event);
+		});
+		log.info("Backfill of "+window+" started, "+parts.size()+" token ranges scanned by "+parallelism+" threads.");
+
+		AtomicInteger threadIndex = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism, r ->
+		{
+			Thread t = new Thread(r, "cassandra_sync-backfill-"+threadIndex.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		try
+		{
+			CompletionService<Integer> completions = new ExecutorCompletionService<Integer>(executor);
+			for (Callable<Integer> part : parts)
+			{
+				completions.submit(part);
+			}
+
+			long pushed = 0L;
+			for (int done = 1; done <= parts.size(); ++done)
+			{
+				try
+				{
+					pushed += completions.take().get();
+				}
+				catch (ExecutionException e)
+				{
+					if (e.getCause() instanceof CancellationException || stopped.getAsBoolean())
+					{
+						log.info("Backfill stopped after "+pushed+" events.");
+						return null;
+					}
+					throw (e.getCause() instanceof Exception)?(Exception)e.getCause():e;
+				}
+				if (done % Math.max(1, parts.size()/10) == 0)
+				{
+					log.info("Backfill scanned "+done+" of "+parts.size()+" token ranges, "+pushed+" events pushed.");
+				}
+			}
+		}
+		finally
+		{
+			executor.shutdownNow(); // abandons remaining parts after an error
+		}
+
+		SegmentTable returnValue = new SegmentTable(histogram.length());
+		for (int i = 0; i < histogram.length(); ++i)
+		{
+			int index = returnValue.add(from + i*bucketMillis, Math.min(to, from + (i+1)*bucketMillis));
+			new TimeSegment(returnValue, index).setCheckResult(histogram.get(i), histogram.get(i));
+		}
+		return returnValue;
+	}
+}
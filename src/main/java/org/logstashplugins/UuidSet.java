@@ -0,0 +1,121 @@
+package org.logstashplugins;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing (linear probing) set of UUIDs stored as two longs, used to deduplicate rows of a query.
+ *
+ * Set is meant to be reused, clear() only advances the generation stamp, slots stamped by older generations are considered empty.
+ */
+final class UuidSet
+{
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] msbs;
+	private long[] lsbs;
+	private int[] stamps;
+	private int mask;
+	private int generation = 1;
+	private int size = 0;
+
+	UuidSet(int aExpectedSize)
+	{
+		allocate(capacityFor(aExpectedSize));
+	}
+
+	private static int capacityFor(int aExpectedSize)
+	{
+		int capacity = MIN_CAPACITY;
+		while (capacity < 2L*aExpectedSize && capacity < (1 << 30)) // load factor at most 0.5
+		{
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	private void allocate(int aCapacity)
+	{
+		msbs = new long[aCapacity];
+		lsbs = new long[aCapacity];
+		stamps = new int[aCapacity];
+		mask = aCapacity-1;
+	}
+
+	private static int slot(long msb, long lsb, int mask)
+	{
+		long h = (msb ^ Long.rotateLeft(lsb, 32)) * 0x9E3779B97F4A7C15L;
+		return (int)(h >>> 32) & mask;
+	}
+
+	/**
+	 * Returns false if the UUID is already present.
+	 */
+	boolean add(long msb, long lsb)
+	{
+		if (2*(size+1) > stamps.length)
+		{
+			grow();
+		}
+
+		int i = slot(msb, lsb, mask);
+		while (stamps[i] == generation)
+		{
+			if (msbs[i] == msb && lsbs[i] == lsb)
+			{
+				return false;
+			}
+			i = (i+1) & mask;
+		}
+
+		stamps[i] = generation;
+		msbs[i] = msb;
+		lsbs[i] = lsb;
+		++size;
+		return true;
+	}
+
+	private void grow()
+	{
+		long[] oldMsbs = msbs;
+		long[] oldLsbs = lsbs;
+		int[] oldStamps = stamps;
+		int oldGeneration = generation;
+
+		allocate(oldStamps.length << 1);
+		generation = 1;
+		for (int j = 0; j < oldStamps.length; ++j)
+		{
+			if (oldStamps[j] == oldGeneration)
+			{
+				int i = slot(oldMsbs[j], oldLsbs[j], mask);
+				while (stamps[i] == generation)
+				{
+					i = (i+1) & mask;
+				}
+				stamps[i] = generation;
+				msbs[i] = oldMsbs[j];
+				lsbs[i] = oldLsbs[j];
+			}
+		}
+	}
+
+	int size()
+	{
+		return size;
+	}
+
+	int capacity()
+	{
+		return stamps.length;
+	}
+
+	void clear()
+	{
+		size = 0;
+		if (++generation == 0) // stamps wrapped around, all slots has to be really emptied
+		{
+			Arrays.fill(stamps, 0);
+			generation = 1;
+		}
+	}
+}
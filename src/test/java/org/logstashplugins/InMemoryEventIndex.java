@@ -0,0 +1,289 @@
+package org.logstashplugins;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * In-memory stand-in of the Elasticsearch index over synthetic events, with simulated latency and failures.
+ * Indexed events are kept in Fenwick trees (counts and UID hash sums), so any range is counted in O(log n).
+ * Thread safe (state is guarded by the index), events could be pushed by concurrent segment workers.
+ */
+public final class InMemoryEventIndex implements EventIndexOperations
+{
+	private static final int HISTOGRAM_BUCKETS = 1000;
+
+	/**
+	 * Binary indexed tree of sums over event positions.
+	 */
+	private static final class Fenwick
+	{
+		private final long[] tree;
+
+		Fenwick(int size)
+		{
+			tree = new long[size+1];
+		}
+
+		void add(int position, long delta)
+		{
+			for (int i = position+1; i < tree.length; i += i & -i)
+			{
+				tree[i] += delta;
+			}
+		}
+
+		/**
+		 * Sum of positions [0, end).
+		 */
+		long sum(int end)
+		{
+			long returnValue = 0L;
+			for (int i = end; i > 0; i -= i & -i)
+			{
+				returnValue += tree[i];
+			}
+			return returnValue;
+		}
+	}
+
+	private final SyntheticEvents events;
+	private final VirtualClock clock;
+	private final long requestMillis;
+	private final double failureRate;
+	private final Random random;
+	private final boolean[] indexed;
+	private final Fenwick counts;
+	private final Fenwick digests;
+	private final Map<String, Integer> queries = new TreeMap<String, Integer>();
+	private int indexedCount = 0;
+	private long pushed = 0L;
+	private long rePushed = 0L;
+	private int deletedBelow = 0; // events before this position were already deleted
+
+	/**
+	 * @param aMissingRate fraction of events missing in the index at the start
+	 */
+	public InMemoryEventIndex(SyntheticEvents aEvents, double aMissingRate, VirtualClock aClock, long aRequestMillis, double aFailureRate, Random aRandom)
+	{
+		this.events = aEvents;
+		this.clock = aClock;
+		this.requestMillis = aRequestMillis;
+		this.failureRate = aFailureRate;
+		this.random = aRandom;
+		this.indexed = new boolean[aEvents.size()];
+		this.counts = new Fenwick(aEvents.size());
+		this.digests = new Fenwick(aEvents.size());
+		for (int i = 0; i < aEvents.size(); ++i)
+		{
+			if (random.nextDouble() >= aMissingRate)
+			{
+				index(i);
+			}
+		}
+	}
+
+	private void index(int event)
+	{
+		indexed[event] = true;
+		counts.add(event, 1L);
+		digests.add(event, SegmentDigest.hashUid(events.uidMsb[event], event));
+		++indexedCount;
+	}
+
+	/**
+	 * Output of the pipeline, indexes pushed event (document id is given by the event, so repeated push changes nothing).
+	 */
+	public Consumer<Map<String, Object>> consumer()
+	{
+		return event -> push((int)UUID.fromString((String)event.get("uid")).getLeastSignificantBits());
+	}
+
+	private synchronized void push(int id)
+	{
+		++pushed;
+		if (indexed[id])
+		{
+			++rePushed;
+		}
+		else
+		{
+			index(id);
+		}
+	}
+
+	/**
+	 * Removes indexed event, as if it was deleted from the index outside of the plugin.
+	 */
+	public synchronized void remove(int event)
+	{
+		if (indexed[event])
+		{
+			indexed[event] = false;
+			counts.add(event, -1L);
+			digests.add(event, -SegmentDigest.hashUid(events.uidMsb[event], event));
+			--indexedCount;
+		}
+	}
+
+	public int getIndexedCount() { return indexedCount; }
+
+	public long getPushed() { return pushed; }
+
+	public long getRePushed() { return rePushed; }
+
+	/**
+	 * Number of events created at or after fromMillis which are not indexed.
+	 */
+	public synchronized int getMissing(long fromMillis)
+	{
+		int first = SyntheticEvents.lowerBound(events.created, fromMillis);
+		return (events.size() - first) - (int)(counts.sum(events.size()) - counts.sum(first));
+	}
+
+	/**
+	 * Number of issued requests by type.
+	 */
+	public Map<String, Integer> getQueries() { return queries; }
+
+	private synchronized void request(String type) throws IOException
+	{
+		queries.merge(type, 1, Integer::sum);
+		clock.advance(requestMillis);
+		if (random.nextDouble() < failureRate)
+		{
+			throw new IOException("Simulated ES "+type+" failure.");
+		}
+	}
+
+	private synchronized SegmentDigest digest(long from, long to)
+	{
+		int first = SyntheticEvents.lowerBound(events.created, from);
+		int end = SyntheticEvents.lowerBound(events.created, to);
+		return new SegmentDigest((int)(counts.sum(end) - counts.sum(first)), digests.sum(end) - digests.sum(first));
+	}
+
+	@Override
+	public int countEsData(TimeSegment period) throws Exception
+	{
+		request("count");
+		return digest(period.getFromMillis(), period.getToMillis()).getCount();
+	}
+
+	@Override
+	public Map<TimeSegment, Integer> countEsData(List<TimeSegment> periods) throws IOException
+	{
+		Map<TimeSegment, Integer> returnValue = new HashMap<TimeSegment, Integer>();
+		if (!periods.isEmpty())
+		{
+			request("count_batch");
+			for (TimeSegment ts : periods)
+			{
+				returnValue.put(ts, digest(ts.getFromMillis(), ts.getToMillis()).getCount());
+			}
+		}
+		return returnValue;
+	}
+
+	@Override
+	public CompletableFuture<Integer> countEsDataAsync(TimeSegment period)
+	{
+		CompletableFuture<Integer> returnValue = new CompletableFuture<Integer>();
+		try
+		{
+			returnValue.complete(countEsData(period));
+		}
+		catch (Exception e)
+		{
+			returnValue.completeExceptionally(e);
+		}
+		return returnValue;
+	}
+
+	@Override
+	public List<SegmentDigest> digestEsData(List<TimeSegment> periods) throws IOException
+	{
+		request("digest_batch");
+		List<SegmentDigest> returnValue = new ArrayList<SegmentDigest>(periods.size());
+		for (TimeSegment ts : periods)
+		{
+			returnValue.add(digest(ts.getFromMillis(), ts.getToMillis()));
+		}
+		return returnValue;
+	}
+
+	@Override
+	public SegmentDigest digestEsData(TimeSegment period) throws IOException
+	{
+		request("digest");
+		return digest(period.getFromMillis(), period.getToMillis());
+	}
+
+	/**
+	 * Same cuts as ElasticSearchOperations.histogramSplitPoints, buckets are counted from the index.
+	 */
+	@Override
+	public long[] histogramSplitPoints(TimeSegment period, int targetCount) throws IOException
+	{
+		request("histogram");
+		long from = period.getFromMillis();
+		long to = period.getToMillis();
+		long interval = Math.max(1L, (to - from + HISTOGRAM_BUCKETS - 1) / HISTOGRAM_BUCKETS);
+
+		List<Long> points = new ArrayList<Long>();
+		long count = 0;
+		for (long bucketStart = from; bucketStart < to; bucketStart += interval)
+		{
+			long bucketCount = digest(bucketStart, Math.min(to, bucketStart + interval)).getCount();
+			if (bucketCount > 0)
+			{
+				if (count > 0 && count + bucketCount > targetCount && bucketStart > from)
+				{
+					points.add(bucketStart);
+					count = 0;
+				}
+				count += bucketCount;
+			}
+		}
+
+		long[] returnValue = new long[points.size()];
+		for (int i = 0; i < returnValue.length; ++i)
+		{
+			returnValue[i] = points.get(i);
+		}
+		return returnValue;
+	}
+
+	@Override
+	public synchronized long deleteOlder(TimeSegment planBoundary)
+	{
+		queries.merge("delete", 1, Integer::sum);
+		clock.advance(requestMillis);
+		long deleted = 0;
+		int end = SyntheticEvents.lowerBound(events.created, planBoundary.getFromMillis());
+		for (; deletedBelow < end; ++deletedBelow)
+		{
+			if (indexed[deletedBelow])
+			{
+				indexed[deletedBelow] = false;
+				counts.add(deletedBelow, -1L);
+				digests.add(deletedBelow, -SegmentDigest.hashUid(events.uidMsb[deletedBelow], deletedBelow));
+				--indexedCount;
+				++deleted;
+			}
+		}
+		return deleted;
+	}
+
+	@Override
+	public void close()
+	{
+	}
+}
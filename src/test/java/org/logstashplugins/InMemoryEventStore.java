@@ -0,0 +1,233 @@
+package org.logstashplugins;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * In-memory stand-in of the Cassandra event store over synthetic events, with simulated latency and failures.
+ * Queries behave like the CS queries of CassandraSearchOperations (LIMIT applies to rows, result is deduplicated by UID).
+ * Thread safe, queried by concurrent segment workers as well.
+ */
+public final class InMemoryEventStore implements EventStoreOperations
+{
+	private final SyntheticEvents events;
+	private final int fetchLimit;
+	private final VirtualClock clock;
+	private final long requestMillis;
+	private final double rowMillis;
+	private final double failureRate;
+	private final Random random;
+	private final UuidSet dedupByUid = new UuidSet(1024);
+	private final Map<String, Integer> queries = new TreeMap<String, Integer>();
+
+	/**
+	 * @param aRequestMillis latency of each request
+	 * @param aRowMillis additional latency per transferred row
+	 * @param aFailureRate probability that a request fails
+	 */
+	public InMemoryEventStore(SyntheticEvents aEvents, int aFetchLimit, VirtualClock aClock, long aRequestMillis, double aRowMillis, double aFailureRate, Random aRandom)
+	{
+		this.events = aEvents;
+		this.fetchLimit = aFetchLimit;
+		this.clock = aClock;
+		this.requestMillis = aRequestMillis;
+		this.rowMillis = aRowMillis;
+		this.failureRate = aFailureRate;
+		this.random = aRandom;
+	}
+
+	/**
+	 * Number of issued queries by type.
+	 */
+	public Map<String, Integer> getQueries()
+	{
+		return queries;
+	}
+
+	private int firstRow(TimeSegment period)
+	{
+		return SyntheticEvents.lowerBound(events.rowCreated, period.getFromMillis());
+	}
+
+	private int endRow(TimeSegment period, int firstRow)
+	{
+		return Math.min(SyntheticEvents.lowerBound(events.rowCreated, period.getToMillis()), firstRow + fetchLimit);
+	}
+
+	private synchronized void request(String type, int rows)
+	{
+		queries.merge(type, 1, Integer::sum);
+		clock.advance(requestMillis + (long)(rows * rowMillis));
+		if (random.nextDouble() < failureRate)
+		{
+			throw new IllegalStateException("Simulated CS "+type+" failure.");
+		}
+	}
+
+	@Override
+	public synchronized int loadCsData(TimeSegment period, Consumer<Map<String, Object>> consumer)
+	{
+		int first = firstRow(period);
+		int end = endRow(period, first);
+		request("load", end - first);
+
+		dedupByUid.clear();
+		int pushed = 0;
+		for (int row = first; row < end; ++row)
+		{
+			int event = events.rowEvent[row];
+			if (dedupByUid.add(events.uidMsb[event], event))
+			{
+				consumer.accept(toEvent(event));
+				++pushed;
+			}
+		}
+		return pushed;
+	}
+
+	@Override
+	public synchronized int loadCsDataRows(TimeSegment period, Consumer<Map<String, Object>> consumer)
+	{
+		loadCsData(period, consumer);
+		int first = firstRow(period);
+		return endRow(period, first) - first;
+	}
+
+	private Map<String, Object> toEvent(int event)
+	{
+		Map<String, Object> returnValue = new HashMap<String, Object>(4);
+		returnValue.put("uid", new UUID(events.uidMsb[event], event).toString());
+		returnValue.put("created", Instant.ofEpochMilli(events.created[event]).toString());
+		return returnValue;
+	}
+
+	/**
+	 * Events are spread over parts by their id (like partitions over token ranges), parts are not limited by the fetch limit.
+	 * Duplicates of an event fall into the same part, they are deduplicated by UID within the part.
+	 */
+	@Override
+	public List<Callable<Integer>> scanCsData(TimeSegment period, int minParts, Consumer<Map<String, Object>> consumer)
+	{
+		int parts = Math.max(1, minParts);
+		List<Callable<Integer>> returnValue = new ArrayList<Callable<Integer>>(parts);
+		for (int p = 0; p < parts; ++p)
+		{
+			int part = p;
+			returnValue.add(() ->
+			{
+				int first = firstRow(period);
+				int end = SyntheticEvents.lowerBound(events.rowCreated, period.getToMillis());
+				request("scan", (end - first) / parts);
+				UuidSet partDedup = new UuidSet(1024);
+				int pushed = 0;
+				for (int row = first; row < end; ++row)
+				{
+					int event = events.rowEvent[row];
+					if (event % parts == part && partDedup.add(events.uidMsb[event], event))
+					{
+						consumer.accept(toEvent(event));
+						++pushed;
+					}
+				}
+				return pushed;
+			});
+		}
+		return returnValue;
+	}
+
+	@Override
+	public CompletableFuture<Integer> loadCsDataAsync(TimeSegment period, Consumer<Map<String, Object>> consumer, Executor executor)
+	{
+		try
+		{
+			return CompletableFuture.completedFuture(loadCsData(period, consumer));
+		}
+		catch (RuntimeException e)
+		{
+			CompletableFuture<Integer> returnValue = new CompletableFuture<Integer>();
+			returnValue.completeExceptionally(e);
+			return returnValue;
+		}
+	}
+
+	@Override
+	public int countCsData(TimeSegment period)
+	{
+		return digestCsData(period).getCount();
+	}
+
+	@Override
+	public CompletableFuture<Integer> countCsDataAsync(TimeSegment period, boolean routine, boolean approximate, Executor executor)
+	{
+		try
+		{
+			return CompletableFuture.completedFuture(digest(period, routine).getCount());
+		}
+		catch (RuntimeException e)
+		{
+			CompletableFuture<Integer> returnValue = new CompletableFuture<Integer>();
+			returnValue.completeExceptionally(e);
+			return returnValue;
+		}
+	}
+
+	@Override
+	public SegmentDigest digestCsData(TimeSegment period)
+	{
+		return digest(period, false);
+	}
+
+	/**
+	 * All replicas are consistent here, routine counts differ only by the query type they are reported under.
+	 */
+	private SegmentDigest digest(TimeSegment period, boolean routine)
+	{
+		int first = firstRow(period);
+		int end = endRow(period, first);
+		request(routine?"count_routine":"count", end - first);
+		int count = (end - first >= fetchLimit)?fetchLimit:events.distinctBefore[end] - events.distinctBefore[first]; // cut off by the query limit, same as CountSink
+		return new SegmentDigest(count, events.digestBefore[end] - events.digestBefore[first]);
+	}
+
+	@Override
+	public CompletableFuture<SegmentDigest> digestCsDataAsync(TimeSegment period, boolean routine, Executor executor)
+	{
+		try
+		{
+			return CompletableFuture.completedFuture(digest(period, routine));
+		}
+		catch (RuntimeException e)
+		{
+			CompletableFuture<SegmentDigest> returnValue = new CompletableFuture<SegmentDigest>();
+			returnValue.completeExceptionally(e);
+			return returnValue;
+		}
+	}
+
+	@Override
+	public long getTagVersion()
+	{
+		return 0L; // all events are included
+	}
+
+	@Override
+	public boolean isCountApproximate(TimeSegment period)
+	{
+		return false;
+	}
+
+	@Override
+	public void close()
+	{
+	}
+}
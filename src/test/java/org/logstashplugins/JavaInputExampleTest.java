@@ -1,13 +1,31 @@
 package org.logstashplugins;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CompletionException;
 
+import org.apache.logging.log4j.LogManager;
 import org.junit.Test;
 
+import com.datastax.oss.driver.api.core.DriverTimeoutException;
+import com.datastax.oss.driver.api.core.NoNodeAvailableException;
+
 public class JavaInputExampleTest
 {
 	
@@ -42,7 +60,457 @@ public class JavaInputExampleTest
 		assertFalse(CassandraSearchOperations.filterTagsToIncludeExpression("0", eventTags, null));
 		assertFalse(CassandraSearchOperations.filterTagsToIncludeExpression("!'camel'", eventTags, null));
 		assertFalse(CassandraSearchOperations.filterTagsToIncludeExpression("camel && test01 && !filebeat", eventTags, null));
-		assertFalse(CassandraSearchOperations.filterTagsToIncludeExpression("camel && test01 && !'filebeat'", eventTags, null));		
+		assertFalse(CassandraSearchOperations.filterTagsToIncludeExpression("camel && test01 && !'filebeat'", eventTags, null));
+		assertFalse(CassandraSearchOperations.filterTagsToIncludeExpression("camel && (test01", eventTags, null)); // invalid expression
+	}
+
+	@Test
+	public void testTagExpressionPrecedence()
+	{
+		Set<String> eventTags =  new HashSet<String>();
+		eventTags.add("camel");
+
+		TagExpression expression = TagExpression.compile("camel && (test77 || !'filebeat')");
+		assertTrue(expression.evaluate(eventTags));
+		eventTags.add("filebeat");
+		assertFalse(expression.evaluate(eventTags));
+
+		assertTrue(TagExpression.compile("0 && camel || 1").evaluate(eventTags));
+		assertFalse(TagExpression.compile("!(camel || 0)").evaluate(eventTags));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testTagExpressionInvalid()
+	{
+		TagExpression.compile("camel && ('test01' ||");
+	}
+
+	@Test
+	public void testPlanRepartition()
+	{
+		SegmentTable table = new SegmentTable(4);
+		int[] elCounts = { 10, 20, 100, 30, 40, 5 };
+		for (int i = 0; i < elCounts.length; ++i)
+		{
+			new TimeSegment(table, table.add(i*10L, (i+1)*10L)).setCheckResult(elCounts[i], elCounts[i]);
+		}
+		new TimeSegment(table, 4).resetStatus();
+		
+		DataSyncPlan plan = new DataSyncPlan(1, 100, table);
+		plan.Repartition();
+		
+		// [0-20 Ok 30] [20-25 Dirty] [25-30 Dirty] [30-40 Ok 30] [40-50 Dirty] [50-60 Ok 5]
+		List<TimeSegment> ok = plan.getSegments(TimeSegmentStatus.Ok);
+		List<TimeSegment> dirty = plan.getSegments(TimeSegmentStatus.Dirty);
+		assertEquals(6, table.size);
+		assertEquals(3, ok.size());
+		assertEquals(20L, ok.get(0).getToMillis());
+		assertEquals(30, ok.get(0).getElCount());
+		assertEquals(3, dirty.size());
+		assertEquals(25L, dirty.get(0).getToMillis());
+		assertEquals(25L, dirty.get(1).getFromMillis());
+		assertEquals(dirty.get(1), dirty.get(0).getNext());
+	}
+	
+	@Test
+	public void testPlanRepartitionBySplitPoints()
+	{
+		SegmentTable table = new SegmentTable(1);
+		new TimeSegment(table, table.add(0L, 100L)).setCheckResult(400, Integer.MAX_VALUE);
+		new TimeSegment(table, table.add(100L, 200L)).setCheckResult(100, Integer.MAX_VALUE);
+		
+		DataSyncPlan plan = new DataSyncPlan(1, 100, table);
+		plan.Repartition(Collections.singletonMap(0L, new long[] { 10L, 40L, 90L }));
+		
+		// first segment split at supplied points, second one (without points) in the middle
+		assertEquals(6, table.size);
+		assertEquals(6, plan.getSegments(TimeSegmentStatus.Dirty).size());
+		long[] bounds = { 0L, 10L, 40L, 90L, 100L, 150L, 200L };
+		for (int i = 0; i < table.size; ++i)
+		{
+			assertEquals(bounds[i], table.from[i]);
+			assertEquals(bounds[i+1], table.to[i]);
+		}
+	}
+	
+	@Test
+	public void testPlanCheckpoint() throws Exception
+	{
+		SegmentTable table = new SegmentTable(4);
+		new TimeSegment(table, table.add(0L, 1000L)).setCheckResult(new SegmentDigest(10, 0x1234L), new SegmentDigest(10, 0x1234L));
+		new TimeSegment(table, table.add(1000L, 2000L)).setCheckResult(5, 7); // Invalid
+		new TimeSegment(table, table.add(2000L, 3000L)).setCheckResult(20, 20);
+		new TimeSegment(table, 2).setVerifiedAt(2500L);
+		new TimeSegment(table, 2).setCheckResult(20, 21); // mismatch history 0b01
+		new TimeSegment(table, 2).resetStatus();
+		table.add(3000L, 4000L); // Dirty, never verified
+		
+		Path dir = Files.createTempDirectory("checkpoint");
+		Path file = dir.resolve("plan.bin");
+		try
+		{
+			PlanCheckpoint.save(new DataSyncPlan(1, 100, table), file);
+			SegmentTable loaded = PlanCheckpoint.load(file, 1, 100, new VirtualClock(4000L)).getTable();
+			assertEquals(table.size, loaded.size);
+			for (int i = 0; i < table.size; ++i)
+			{
+				assertEquals(table.from[i], loaded.from[i]);
+				assertEquals(table.to[i], loaded.to[i]);
+				assertEquals(table.status[i], loaded.status[i]);
+				assertEquals(table.elCount[i], loaded.elCount[i]);
+				assertEquals(table.csCount[i], loaded.csCount[i]);
+				assertEquals(table.elDigest[i], loaded.elDigest[i]);
+				assertEquals(table.digestKnown[i], loaded.digestKnown[i]);
+				assertEquals(table.verifiedAt[i], loaded.verifiedAt[i]);
+				assertEquals(table.mismatches[i], loaded.mismatches[i]);
+			}
+			assertTrue(loaded.digestKnown[0]);
+			assertEquals(2500L, loaded.verifiedAt[2]);
+			assertEquals(1, new TimeSegment(loaded, 2).getMismatchCount());
+			
+			// truncated file and bad magic fail the load, sync loop starts with a fresh plan instead
+			byte[] content = Files.readAllBytes(file);
+			Files.write(file, Arrays.copyOf(content, content.length - 5));
+			assertFreshPlan(file);
+			content[0] = 'X';
+			Files.write(file, content);
+			assertFreshPlan(file);
+		}
+		finally
+		{
+			Files.deleteIfExists(file);
+			Files.deleteIfExists(dir);
+		}
+	}
+	
+	private static void assertFreshPlan(Path checkpointFile) throws Exception
+	{
+		VirtualClock clock = new VirtualClock(Instant.parse("2020-01-01T00:00:00Z").toEpochMilli());
+		try (SyncLoop loop = new SyncLoop(100, Duration.ofSeconds(60), 1, 7, false, checkpointFile, Duration.ZERO, () -> null, () -> null,
+										  clock, clock, new SyncMetrics(null), LogManager.getLogger(JavaInputExampleTest.class)))
+		{
+			DataSyncPlan plan = loop.getPlan();
+			assertEquals(1, plan.getTotalCount());
+			assertEquals(1, plan.getSegments(TimeSegmentStatus.Dirty).size());
+		}
+	}
+	
+	@Test
+	public void testSegmentSchedule()
+	{
+		long hour = 3600000L;
+		long now = 100*hour;
+		SegmentTable table = new SegmentTable(6);
+		TimeSegment oldStale = new TimeSegment(table, table.add(0L, 10*hour)); // Dirty, never verified
+		TimeSegment old = new TimeSegment(table, table.add(10*hour, 20*hour));
+		old.setVerifiedAt(now - hour);
+		TimeSegment ok = new TimeSegment(table, table.add(20*hour, 98*hour));
+		ok.setCheckResult(10, 10);
+		ok.setVerifiedAt(now - hour);
+		TimeSegment mismatching = new TimeSegment(table, table.add(98*hour, 98*hour + 1000L));
+		mismatching.setCheckResult(10, 10);
+		mismatching.setCheckResult(10, 20);
+		mismatching.setCheckResult(10, 10);
+		mismatching.setVerifiedAt(now - hour);
+		TimeSegment recent = new TimeSegment(table, table.add(99*hour + 1000L, 99*hour + 2000L));
+		TimeSegment newest = new TimeSegment(table, table.add(99*hour + 2000L, now));
+		
+		DataSyncPlan plan = new DataSyncPlan(1, 100, table);
+		SegmentScheduler scheduler = new SegmentScheduler(hour, 100);
+		
+		// recent window newest first, then by score, Ok segment is not scheduled
+		assertEquals(Arrays.asList(newest, recent, oldStale, old), scheduler.schedule(plan, now));
+		
+		// recently mismatching segment is re-verified before the older one
+		recent.setCheckResult(1, 1);
+		recent.setVerifiedAt(now);
+		newest.setCheckResult(1, 1);
+		newest.setVerifiedAt(now);
+		assertEquals(1, scheduler.markDirty(plan, 1, now));
+		assertEquals(TimeSegmentStatus.Dirty, mismatching.getStatus());
+		assertEquals(TimeSegmentStatus.Ok, ok.getStatus());
+		
+		// only clean history outside the recent window is re-verified at the routine consistency level
+		assertTrue(scheduler.isRoutine(ok, now));
+		assertFalse(scheduler.isRoutine(mismatching, now));
+		assertFalse(scheduler.isRoutine(oldStale, now));
+		assertFalse(scheduler.isRoutine(newest, now));
+	}
+	
+	@Test
+	public void testUuidSet()
+	{
+		UuidSet uids = new UuidSet(4);
+		for (long i = 0; i < 1000; ++i)
+		{
+			assertTrue(uids.add(i, -i));
+		}
+		assertFalse(uids.add(500L, -500L));
+		assertEquals(1000, uids.size());
+		
+		uids.clear();
+		assertEquals(0, uids.size());
+		assertTrue(uids.add(500L, -500L));
+	}
+	
+	@Test
+	public void testEventTimestampFormat()
+	{
+		EventMapper mapper = new EventMapper(null);
+		long[] samples = { 0L, 100L, 1571302800123L, 1571302800000L, -1L, 253402300799999L, 253402300800000L };
+		for (long millis : samples)
+		{
+			assertEquals(Instant.ofEpochMilli(millis).toString(), mapper.format(millis));
+		}
+	}
+	
+	@Test
+	public void testPrefetchPipeline() throws Exception
+	{
+		VirtualClock clock = new VirtualClock(1000000L);
+		SyntheticEvents events = new SyntheticEvents(1000, 0L, 1000000L, 0.0, 0.1, new Random(1L));
+		InMemoryEventStore store = new InMemoryEventStore(events, 10000, clock, 0L, 0.0, 0.0, new Random(1L));
+		SegmentTable table = new SegmentTable(2);
+		TimeSegment first = new TimeSegment(table, table.add(0L, 500000L));
+		TimeSegment second = new TimeSegment(table, table.add(500000L, 1000000L));
+		List<Map<String, Object>> pushed = new ArrayList<Map<String, Object>>();
+		
+		try (PrefetchPipeline pipeline = new PrefetchPipeline(10, 0L))
+		{
+			pipeline.submit(first, store, () -> false);
+			pipeline.submit(second, store, () -> false);
+			int secondCount = pipeline.drain(second, pushed::add, () -> false); // events of the first segment are pushed before
+			assertTrue(pipeline.isPending(first));
+			assertEquals(first, pipeline.firstPending());
+			int firstCount = pipeline.drain(first, pushed::add, () -> false);
+			
+			assertNull(pipeline.firstPending());
+			assertEquals(1000, firstCount + secondCount);
+			assertEquals(1000, pushed.size());
+		}
+	}
+	
+	@Test
+	public void testTailFetcher() throws Exception
+	{
+		VirtualClock clock = new VirtualClock(500000L);
+		SyntheticEvents events = new SyntheticEvents(1000, 0L, 1000000L, 0.0, 0.1, new Random(1L));
+		InMemoryEventStore store = new InMemoryEventStore(events, 1000, clock, 0L, 0.0, 0.0, new Random(1L));
+		List<Map<String, Object>> pushed = new ArrayList<Map<String, Object>>();
+		
+		try (TailFetcher tail = new TailFetcher(Duration.ofMillis(100), Duration.ofMillis(5000), 1000, () -> store, clock, new SyncMetrics(null), LogManager.getLogger(JavaInputExampleTest.class)))
+		{
+			clock.advance(100000L);
+			tail.poll(pushed::add); // catches up by at most a minute
+			assertEquals(560000L, tail.getWatermark());
+			tail.poll(pushed::add); // overlap is not pushed again
+			assertEquals(600000L, tail.getWatermark());
+			assertEquals(SyntheticEvents.lowerBound(events.created, 600000L) - SyntheticEvents.lowerBound(events.created, 495000L), pushed.size());
+		}
+		
+		InMemoryEventStore limited = new InMemoryEventStore(events, 20, clock, 0L, 0.0, 0.0, new Random(1L));
+		try (TailFetcher tail = new TailFetcher(Duration.ofMillis(100), Duration.ofMillis(0), 20, () -> limited, clock, new SyncMetrics(null), LogManager.getLogger(JavaInputExampleTest.class)))
+		{
+			long start = tail.getWatermark();
+			clock.advance(100000L);
+			int polled = tail.poll(event -> {});
+			assertTrue(polled < 20); // duplicates dropped from rows cut off by the limit
+			assertEquals(start, tail.getWatermark()); // window is narrowed instead of skipping the rest
+		}
+		
+		try (TailFetcher tail = new TailFetcher(Duration.ofMillis(100), Duration.ofMillis(0), 20, () -> null, clock, new SyncMetrics(null), LogManager.getLogger(JavaInputExampleTest.class)))
+		{
+			assertEquals(0, tail.poll(event -> {})); // sync loop is not connected yet
+		}
+	}
+	
+	@Test
+	public void testTimeBasedIndices()
+	{
+		TimeBasedIndices daily = new TimeBasedIndices("yyyy.MM.dd");
+		long day = Instant.parse("2020-02-28T00:00:00Z").toEpochMilli();
+		assertEquals(day, daily.period("eventstore-iot-2020.02.28")[0]);
+		assertEquals(day + 86400000L, daily.period("eventstore-iot-2020.02.28")[1]);
+		assertNull(daily.period("eventstore-iot"));
+		assertNull(daily.period("eventstore-iot-archive"));
+		
+		TimeBasedIndices monthly = new TimeBasedIndices("yyyy.MM");
+		assertEquals(Instant.parse("2020-03-01T00:00:00Z").toEpochMilli(), monthly.period("eventstore-iot-2020.02")[1]);
+	}
+	
+	@Test
+	public void testCountCache()
+	{
+		long day = 86400000L;
+		long now = 100*day;
+		assertEquals(300000L, CountCache.ttlMillis(0L)); // minutes for today
+		assertEquals(day, CountCache.ttlMillis(30*day)); // a day for last quarter
+		assertEquals(7*day, CountCache.ttlMillis(365*day));
+		
+		CountCache cache = new CountCache();
+		SegmentTable table = new SegmentTable(2);
+		TimeSegment verified = new TimeSegment(table, table.add(now - 31*day, now - 30*day));
+		verified.setCheckResult(10, 10);
+		verified.setVerifiedAt(now);
+		cache.put(verified, 1L, now);
+		assertEquals(new TimeSegment(now - 31*day, now - 30*day), verified.range()); // standalone ranges are equal by bounds
+		assertTrue(verified.hasBounds(verified.range()));
+		
+		TimeSegment dirty = new TimeSegment(table, table.add(now - 31*day, now - 30*day));
+		assertFalse(cache.apply(dirty, 2L, now)); // other tag combinations
+		assertTrue(cache.apply(dirty, 1L, now + day - 1));
+		assertEquals(TimeSegmentStatus.Ok, dirty.getStatus());
+		assertEquals(10, dirty.getCsCount());
+		assertFalse(cache.apply(new TimeSegment(now - 31*day, now - 30*day), 1L, now + day)); // expired
+		
+		cache.put(verified, 1L, now);
+		cache.invalidate(now - 30*day - 1, now); // pushed into the range
+		assertFalse(cache.apply(new TimeSegment(now - 31*day, now - 30*day), 1L, now));
+		assertEquals(0, cache.evict(1L, now));
+	}
+	
+	@Test
+	public void testDigestVerifier() throws Exception
+	{
+		SegmentDigest three = new SegmentDigest(3, 100L);
+		SegmentDigest one = new SegmentDigest(1, 40L);
+		assertEquals(new SegmentDigest(2, 60L), three.subtract(one));
+		assertEquals(three, three.subtract(one).add(one));
+		assertTrue(three.requiresLoad(new SegmentDigest(2, 100L))); // event missing in the index
+		assertTrue(three.requiresLoad(new SegmentDigest(3, 99L))); // same count, different events
+		assertFalse(three.requiresLoad(new SegmentDigest(3, 100L)));
+		assertFalse(one.requiresLoad(three)); // events only in the index are not loaded
+		
+		int segments = 1024;
+		VirtualClock clock = new VirtualClock(0L);
+		SyntheticEvents events = new SyntheticEvents(20000, 0L, segments*1000L, 0.0, 0.0, new Random(1L));
+		InMemoryEventIndex index = new InMemoryEventIndex(events, 0.0, clock, 0L, 0.0, new Random(1L));
+		SegmentTable table = new SegmentTable(segments);
+		for (int i = 0; i < segments; ++i)
+		{
+			TimeSegment ts = new TimeSegment(table, table.add(i*1000L, (i+1)*1000L));
+			SegmentDigest digest = index.digestEsData(ts);
+			ts.setCheckResult(digest, digest);
+		}
+		
+		DigestVerifier unchanged = new DigestVerifier(new DataSyncPlan(1, 100000, table));
+		assertTrue(unchanged.audit(index).isEmpty());
+		assertEquals(1, unchanged.getRoundTrips()); // whole run at once
+		
+		int event = 12345;
+		index.remove(event);
+		DigestVerifier verifier = new DigestVerifier(new DataSyncPlan(1, 100000, table));
+		List<TimeSegment> changed = verifier.audit(index);
+		assertEquals(1, changed.size());
+		assertEquals(events.created[event] / 1000L * 1000L, changed.get(0).getFromMillis());
+		assertEquals(1 + 10, verifier.getRoundTrips()); // whole run, then one bisection level per round trip (log2 1024)
+	}
+	
+	@Test
+	public void testCircuitBreaker()
+	{
+		VirtualClock clock = new VirtualClock(0L);
+		CircuitBreaker breaker = new CircuitBreaker(2, Duration.ofSeconds(5), clock);
+		
+		assertFalse(breaker.recordFailure(new DriverTimeoutException("busy node"))); // not a connectivity error, session is kept
+		assertFalse(breaker.recordFailure(new DriverTimeoutException("busy node")));
+		assertFalse(breaker.recordFailure(new CompletionException(new NoNodeAvailableException())));
+		breaker.recordSuccess();
+		assertFalse(breaker.recordFailure(new NoNodeAvailableException()));
+		assertTrue(breaker.recordFailure(new NoNodeAvailableException()));
+		assertTrue(breaker.isOpen());
+		
+		clock.advance(5000L);
+		assertFalse(breaker.isOpen());
+		breaker.checkAvailable(); // does not throw after the cool-down
+	}
+	
+	@Test
+	public void testSyncSimulatorConverges() throws Exception
+	{
+		SyncSimulator.Scenario scenario = new SyncSimulator.Scenario();
+		scenario.days = 7;
+		scenario.events = 100000;
+		scenario.syncLimit = 2000;
+		scenario.missingRate = 0.05;
+		scenario.maxVirtualHours = 24;
+		SyncSimulator.Report report = SyncSimulator.run(scenario);
+		
+		assertTrue(report.toString(), report.consistent);
+		assertTrue(report.eventsPushed >= report.missingAtStart);
+	}
+	
+	@Test
+	public void testSyncSimulatorEmptyIndex() throws Exception
+	{
+		SyncSimulator.Scenario scenario = new SyncSimulator.Scenario();
+		scenario.days = 7;
+		scenario.events = 100000;
+		scenario.syncLimit = 2000;
+		scenario.missingRate = 1.0; // whole history is oversized in CS only, ES histogram is empty
+		scenario.maxVirtualHours = 1;
+		SyncSimulator.Report report = SyncSimulator.run(scenario);
+		
+		assertTrue(report.toString(), report.consistent);
+		assertTrue(report.toString(), report.rounds <= 6); // 16 parts per round instead of halving
+		assertArrayEquals(new long[] { 1000L, 2000L, 3000L }, SyncLoop.evenSplitPoints(0L, 4000L, 4));
+		assertEquals(0, SyncLoop.evenSplitPoints(0L, 1000L, 16).length); // parts of at least a second
+	}
+	
+	@Test
+	public void testSyncSimulatorDigest() throws Exception
+	{
+		SyncSimulator.Scenario scenario = new SyncSimulator.Scenario();
+		scenario.days = 7;
+		scenario.events = 100000;
+		scenario.syncLimit = 2000;
+		scenario.digestVerification = true;
+		scenario.auditPeriodSeconds = 0; // audit every round
+		SyncSimulator.Report report = SyncSimulator.run(scenario);
+		
+		assertTrue(report.toString(), report.consistent);
+		assertTrue(report.toString(), report.queries.containsKey("es_digest"));
+		assertEquals(report.toString(), Integer.valueOf(report.rounds - 1), report.queries.get("es_digest_batch")); // the first round has no Ok segments yet
+		
+		scenario.auditPeriodSeconds = 3600;
+		report = SyncSimulator.run(scenario);
+		assertTrue(report.toString(), report.consistent);
+		assertFalse(report.toString(), report.queries.containsKey("es_digest_batch")); // consistent before the first audit period
+	}
+	
+	@Test
+	public void testSyncSimulatorParallel() throws Exception
+	{
+		SyncSimulator.Scenario scenario = new SyncSimulator.Scenario();
+		scenario.days = 7;
+		scenario.events = 100000;
+		scenario.syncLimit = 2000;
+		scenario.parallelism = 4; // segment workers, with duplicates in CS (duplicateRate) and oversized segments at the start
+		scenario.failureRate = 0.02; // failed rounds wait for in-flight work of the other workers
+		scenario.maxVirtualHours = 24;
+		SyncSimulator.Report report = SyncSimulator.run(scenario);
+		
+		assertTrue(report.toString(), report.consistent);
+		assertTrue(report.toString(), report.failedRounds > 0);
+		assertEquals(report.toString(), 0L, report.eventsPushed - report.eventsRePushed - report.missingAtStart); // every missing event indexed
+	}
+	
+	@Test
+	public void testSyncSimulatorBackfill() throws Exception
+	{
+		SyncSimulator.Scenario scenario = new SyncSimulator.Scenario();
+		scenario.days = 7;
+		scenario.events = 100000;
+		scenario.syncLimit = 2000;
+		scenario.missingRate = 1.0; // empty index
+		scenario.maxVirtualHours = 24;
+		scenario.backfill = true;
+		SyncSimulator.Report report = SyncSimulator.run(scenario);
+		
+		assertTrue(report.toString(), report.consistent);
+		assertEquals(report.toString(), 1, report.rounds); // the first round finds everything backfilled
+		assertEquals(report.toString(), 0L, report.eventsRePushed); // duplicates in CS are not pushed twice
+		assertEquals(Integer.valueOf(scenario.backfillParts), report.queries.get("cs_scan"));
 	}
 	
     /*
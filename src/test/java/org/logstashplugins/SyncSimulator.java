@@ -0,0 +1,156 @@
+package org.logstashplugins;
+
+import java.lang.reflect.Field;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * Drives the sync loop against in-memory CS and ES stand-ins on a virtual clock and measures how fast the index becomes consistent.
+ *
+ * With sync parallelism 1 segments are processed sequentially, so a scenario with the same seed always gives the same result.
+ * Higher parallelism runs concurrent segment workers against the same stand-ins, results then depend on thread scheduling.
+ * Usage: SyncSimulator [field=value ...] where fields are those of Scenario, e.g. SyncSimulator events=5000000 syncLimit=20000
+ */
+public final class SyncSimulator
+{
+	/**
+	 * Simulation parameters.
+	 */
+	public static final class Scenario
+	{
+		public int days = 30; // load depth
+		public int events = 1000000;
+		public int syncLimit = 10000;
+		public int syncPeriodSeconds = 60;
+		public int parallelism = 1; // concurrent segment workers if above 1
+		public boolean digestVerification = false;
+		public int auditPeriodSeconds = 3600; // digest audit of Ok segments
+		public boolean backfill = false; // token range scan before the first round (when the index is empty, see missingRate)
+		public int backfillParts = 16;
+		public double missingRate = 0.01; // fraction of events not indexed at the start
+		public double duplicateRate = 0.01; // fraction of events stored twice in CS
+		public double burstFraction = 0.2; // fraction of events created within a single hour
+		public double failureRate = 0.0; // probability of failure of each request
+		public long csRequestMillis = 5L;
+		public double csRowMillis = 0.01;
+		public long esRequestMillis = 10L;
+		public long seed = 1L;
+		public int maxVirtualHours = 24*7; // simulation gives up after that
+
+		@Override
+		public String toString()
+		{
+			StringBuilder returnValue = new StringBuilder();
+			for (Field field : Scenario.class.getFields())
+			{
+				try
+				{
+					returnValue.append(returnValue.length() == 0?"":", ").append(field.getName()).append('=').append(field.get(this));
+				}
+				catch (IllegalAccessException e)
+				{
+					throw new IllegalStateException(e);
+				}
+			}
+			return returnValue.toString();
+		}
+	}
+
+	/**
+	 * Result of a simulation.
+	 */
+	public static final class Report
+	{
+		public boolean consistent;
+		public long timeToConsistencyMillis; // virtual time of the whole simulation if not consistent
+		public int rounds;
+		public int failedRounds;
+		public long segmentsProcessed;
+		public long eventsPushed;
+		public long eventsRePushed; // pushed events which were already indexed
+		public int missingAtStart;
+		public int missingAtEnd;
+		public final Map<String, Integer> queries = new TreeMap<String, Integer>();
+
+		@Override
+		public String toString()
+		{
+			return (consistent?"Consistent after ":"Not consistent after ")+Duration.ofMillis(timeToConsistencyMillis)+", rounds: "+rounds+" (failed: "+failedRounds+")"
+					+", segments processed: "+segmentsProcessed+", missing events: "+missingAtStart+" -> "+missingAtEnd
+					+", events pushed: "+eventsPushed+" (re-pushed: "+eventsRePushed+"), queries: "+queries;
+		}
+	}
+
+	private SyncSimulator()
+	{
+	}
+
+	public static Report run(Scenario scenario) throws Exception
+	{
+		Random random = new Random(scenario.seed);
+		long startMillis = 1577836800000L; // 2020-01-01T00:00:00Z
+		VirtualClock clock = new VirtualClock(startMillis);
+		long historyFrom = startMillis - Duration.ofDays(scenario.days).toMillis();
+		SyntheticEvents events = new SyntheticEvents(scenario.events, historyFrom, startMillis, scenario.burstFraction, scenario.duplicateRate, random);
+		InMemoryEventStore store = new InMemoryEventStore(events, scenario.syncLimit, clock, scenario.csRequestMillis, scenario.csRowMillis, scenario.failureRate, new Random(random.nextLong()));
+		InMemoryEventIndex index = new InMemoryEventIndex(events, scenario.missingRate, clock, scenario.esRequestMillis, scenario.failureRate, new Random(random.nextLong()));
+
+		Report report = new Report();
+		report.missingAtStart = index.getMissing(historyFrom);
+		// no new events are created during the simulation, events leaving the plan window are deleted by the loop
+		long deadline = startMillis + Duration.ofHours(scenario.maxVirtualHours).toMillis();
+		try (SyncLoop loop = new SyncLoop(scenario.syncLimit, Duration.ofSeconds(scenario.syncPeriodSeconds), scenario.parallelism, scenario.days, scenario.digestVerification, null, Duration.ZERO,
+				() -> index, () -> store, clock, clock, new SyncMetrics(null), LogManager.getLogger(SyncSimulator.class)))
+		{
+			loop.setAuditPeriod(Duration.ofSeconds(scenario.auditPeriodSeconds));
+			if (scenario.backfill)
+			{
+				loop.enableBackfill(1, scenario.backfillParts); // sequential, the virtual clock is not thread safe
+			}
+			report.missingAtEnd = index.getMissing(loop.getPlan().iterator().next().getFromMillis());
+			int failures = 0;
+			while (report.missingAtEnd > 0 && clock.millis() < deadline)
+			{
+				try
+				{
+					report.segmentsProcessed += loop.runRound(index.consumer(), () -> false);
+					failures = 0;
+				}
+				catch (Exception e)
+				{
+					++report.failedRounds;
+					clock.sleep(SyncLoop.errorPauseMillis(++failures)); // same pause as SyncLoop.run
+				}
+				++report.rounds;
+				report.missingAtEnd = index.getMissing(loop.getPlan().iterator().next().getFromMillis()); // plan start moves with the clock
+			}
+		}
+
+		report.consistent = report.missingAtEnd == 0;
+		report.timeToConsistencyMillis = clock.millis() - startMillis;
+		report.eventsPushed = index.getPushed();
+		report.eventsRePushed = index.getRePushed();
+		store.getQueries().forEach((type, count) -> report.queries.put("cs_"+type, count));
+		index.getQueries().forEach((type, count) -> report.queries.put("es_"+type, count));
+		return report;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Scenario scenario = new Scenario();
+		for (String arg : args)
+		{
+			String[] nameValue = arg.split("=", 2);
+			Field field = Scenario.class.getField(nameValue[0]);
+			Class<?> type = field.getType();
+			field.set(scenario, (type == int.class)?Integer.valueOf(nameValue[1]):(type == long.class)?Long.valueOf(nameValue[1])
+					:(type == double.class)?Double.valueOf(nameValue[1]):(Object)Boolean.valueOf(nameValue[1]));
+		}
+		System.out.println("Scenario: "+scenario);
+		System.out.println(run(scenario));
+	}
+}
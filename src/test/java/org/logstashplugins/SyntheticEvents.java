@@ -0,0 +1,88 @@
+package org.logstashplugins;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Synthetic event store content shared by in-memory stand-ins of CS and ES.
+ *
+ * Events are ordered by 'created', event id is the position in this order and it is also stored in the least significant bits of the UID.
+ * Rows of the event store are events and their duplicates (same UID and created), ordered by 'created' as well.
+ */
+public final class SyntheticEvents
+{
+	final long[] created; // per event
+	final long[] uidMsb; // per event
+	final long[] rowCreated; // per row
+	final int[] rowEvent; // per row, event id
+	final int[] distinctBefore; // per row + 1, number of first occurrences of events before the row
+	final long[] digestBefore; // per row + 1, sum of UID hashes of first occurrences before the row
+
+	/**
+	 * @param aBurstFraction fraction of events created within a single hour (burst), rest is uniform over the period
+	 * @param aDuplicateRate fraction of events stored twice
+	 */
+	public SyntheticEvents(int aEventCount, long aFromMillis, long aToMillis, double aBurstFraction, double aDuplicateRate, Random random)
+	{
+		long burstStart = aFromMillis + (long)(random.nextDouble() * Math.max(1L, aToMillis - aFromMillis - 3600000L));
+		created = new long[aEventCount];
+		for (int i = 0; i < aEventCount; ++i)
+		{
+			created[i] = (random.nextDouble() < aBurstFraction)?burstStart + (long)(random.nextDouble()*3600000L):aFromMillis + (long)(random.nextDouble()*(aToMillis - aFromMillis));
+		}
+		Arrays.sort(created);
+
+		uidMsb = new long[aEventCount];
+		int rows = 0;
+		boolean[] duplicated = new boolean[aEventCount];
+		for (int i = 0; i < aEventCount; ++i)
+		{
+			uidMsb[i] = random.nextLong();
+			duplicated[i] = random.nextDouble() < aDuplicateRate;
+			rows += duplicated[i]?2:1;
+		}
+
+		rowCreated = new long[rows];
+		rowEvent = new int[rows];
+		distinctBefore = new int[rows+1];
+		digestBefore = new long[rows+1];
+		int row = 0;
+		for (int i = 0; i < aEventCount; ++i)
+		{
+			for (int copy = 0; copy < (duplicated[i]?2:1); ++copy)
+			{
+				rowCreated[row] = created[i];
+				rowEvent[row] = i;
+				distinctBefore[row+1] = distinctBefore[row] + ((copy == 0)?1:0);
+				digestBefore[row+1] = digestBefore[row] + ((copy == 0)?SegmentDigest.hashUid(uidMsb[i], i):0L);
+				++row;
+			}
+		}
+	}
+
+	public int size()
+	{
+		return created.length;
+	}
+
+	/**
+	 * First index with value >= key.
+	 */
+	static int lowerBound(long[] values, long key)
+	{
+		int lo = 0, hi = values.length;
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (values[mid] < key)
+			{
+				lo = mid+1;
+			}
+			else
+			{
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+}
@@ -0,0 +1,55 @@
+package org.logstashplugins;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+/**
+ * Clock of a simulation, time moves only by sleeping or by simulated latency of operations.
+ * Thread safe, operations of concurrent segment workers advance the same clock.
+ */
+public final class VirtualClock extends Clock implements SyncLoop.Sleeper
+{
+	private long millis;
+
+	public VirtualClock(long aStartMillis)
+	{
+		this.millis = aStartMillis;
+	}
+
+	public synchronized void advance(long aMillis)
+	{
+		millis += Math.max(0L, aMillis);
+	}
+
+	@Override
+	public void sleep(long aMillis)
+	{
+		advance(aMillis);
+	}
+
+	@Override
+	public synchronized long millis()
+	{
+		return millis;
+	}
+
+	@Override
+	public Instant instant()
+	{
+		return Instant.ofEpochMilli(millis());
+	}
+
+	@Override
+	public ZoneId getZone()
+	{
+		return ZoneOffset.UTC;
+	}
+
+	@Override
+	public Clock withZone(ZoneId zone)
+	{
+		throw new UnsupportedOperationException("Virtual clock is always UTC.");
+	}
+}